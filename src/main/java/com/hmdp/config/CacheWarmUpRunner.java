@@ -0,0 +1,142 @@
+package com.hmdp.config;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.RedisClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 启动时预热缓存：商铺（逻辑过期）、商铺类型、进行中的秒杀库存，可选的手机号缓存
+ * ApplicationRunner全部执行完之后spring才会把readiness置为ACCEPTING_TRAFFIC，
+ * 所以预热没结束之前探针不会放流量进来；预热失败直接抛出，启动失败，不带着空缓存上线
+ */
+@Slf4j
+@Component
+public class CacheWarmUpRunner implements ApplicationRunner {
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IUserService userService;
+
+    @Resource
+    private RedisClient redisClient;
+
+    @Value("${hmdp.cache.warm-up.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.cache.warm-up.concurrency:4}")
+    private int concurrency;
+
+    /**
+     * 用户量大时全量预热手机号缓存代价不小，默认关闭
+     */
+    @Value("${hmdp.cache.warm-up.phone:false}")
+    private boolean warmUpPhone;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        if (!enabled) {
+            log.info("缓存预热已关闭");
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        List<ShopType> shopTypes = shopTypeService.refreshShopTypeCache();
+        log.info("预热商铺类型完成，共{}条", shopTypes.size());
+        long shops = warmUpShops();
+        long stocks = warmUpSeckillStock();
+        if (warmUpPhone) {
+            log.info("预热手机号缓存完成，共{}条", userService.warmUpPhoneCache());
+        }
+        log.info("缓存预热完成，商铺{}条，新写入秒杀库存{}条，耗时{}ms", shops, stocks, System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 按id游标分页读商铺，每页交给线程池一次pipeline写入
+     * 读库是串行的（下一页依赖上一页的最大id），写redis并行，用信号量限制同时在写的页数，避免把数据都堆在内存里
+     */
+    private long warmUpShops() throws Exception {
+        ExecutorService executor = new ThreadPoolExecutor(concurrency, concurrency, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), new NamedThreadFactory("cache-warm-up-", false));
+        Semaphore permits = new Semaphore(concurrency);
+        List<Future<?>> futures = new ArrayList<>();
+        AtomicLong written = new AtomicLong();
+        try {
+            long lastId = 0;
+            while (true) {
+                List<Shop> page = shopService.query()
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("limit " + CACHE_WARM_UP_PAGE_SIZE)
+                        .list();
+                if (page.isEmpty()) {
+                    break;
+                }
+                lastId = page.get(page.size() - 1).getId();
+                Map<Long, Shop> shops = new LinkedHashMap<>(page.size() * 2);
+                page.forEach(shop -> shops.put(shop.getId(), shop));
+                permits.acquire();
+                futures.add(executor.submit(() -> {
+                    try {
+                        redisClient.setManyWithLogicalExpire(CACHE_SHOP_KEY, shops, CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
+                        log.debug("预热商铺进度：{}", written.addAndGet(shops.size()));
+                    } finally {
+                        permits.release();
+                    }
+                }));
+                if (page.size() < CACHE_WARM_UP_PAGE_SIZE) {
+                    break;
+                }
+            }
+            //任何一页失败都抛出来
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        log.info("预热商铺完成，共{}条", written.get());
+        return written.get();
+    }
+
+    /**
+     * 未结束的秒杀券库存和活动时间写入redis
+     * 库存只在redis里没有时写入：重启时活动可能正在进行，redis里的库存才是准的，不能用数据库的值覆盖
+     */
+    private long warmUpSeckillStock() {
+        long seeded = seckillVoucherService.preload(null);
+        log.info("预热秒杀库存完成，新写入{}条", seeded);
+        return seeded;
+    }
+}
@@ -1,13 +1,21 @@
 package com.hmdp.config;
 
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.RateLimitInterceptor;
+import com.hmdp.utils.RateLimiter;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.SessionCache;
+import com.hmdp.utils.SignedToken;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.web.servlet.HandlerInterceptor;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.List;
+import java.util.stream.Collectors;
 
 @Configuration
 /**
@@ -19,7 +27,16 @@ import javax.annotation.Resource;
 public class MvcConfig implements WebMvcConfigurer {
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SessionCache sessionCache;
+
+    @Resource
+    private SignedToken signedToken;
+
+    @Resource
+    private RateLimiter rateLimiter;
+
+    @Resource
+    private RateLimitProperties rateLimitProperties;
 
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
@@ -34,8 +51,25 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/user/code",
                         "/user/login"
                 ).order(1);
+        // /voucher/**整体放行了，修改秒杀券是新加的写接口，只对PUT单独要求登录
+        LoginInterceptor loginInterceptor = new LoginInterceptor();
+        registry.addInterceptor(new HandlerInterceptor() {
+            @Override
+            public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+                return !"PUT".equals(request.getMethod()) || loginInterceptor.preHandle(request, response, handler);
+            }
+        }).addPathPatterns("/voucher/seckill").order(1);
         // token刷新的拦截器
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
+        registry.addInterceptor(new RefreshTokenInterceptor(sessionCache, signedToken)).addPathPatterns("/**").order(0);
+        // 限流拦截器，只拦截配置了规则的路径
+        List<String> limitedPaths = rateLimitProperties.getRules().stream()
+                .map(RateLimitProperties.Rule::getPath)
+                .distinct()
+                .collect(Collectors.toList());
+        if (!limitedPaths.isEmpty()) {
+            registry.addInterceptor(new RateLimitInterceptor(rateLimiter, rateLimitProperties))
+                    .addPathPatterns(limitedPaths).order(2);
+        }
     }
 
 
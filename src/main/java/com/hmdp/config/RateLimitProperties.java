@@ -0,0 +1,46 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 限流规则，对应配置文件里的hmdp.rate-limit
+ * 规则是一个列表，用@Value不好表达，所以单独绑定成一个配置类
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.rate-limit")
+public class RateLimitProperties {
+
+    private boolean enabled = true;
+
+    private List<Rule> rules = new ArrayList<>();
+
+    @Data
+    public static class Rule {
+        /**
+         * 规则名，同时是redis key和统计数据的一部分
+         */
+        private String name;
+        /**
+         * 生效的路径，支持ant风格
+         */
+        private String path;
+        /**
+         * 按什么维度限流：user 登录用户，ip 客户端地址，voucher 路径上的券id
+         */
+        private String dimension;
+        /**
+         * 每秒补充的令牌数，是所有节点加起来的总速率
+         */
+        private double rate;
+        /**
+         * 桶容量，允许的突发请求数
+         */
+        private long capacity;
+    }
+}
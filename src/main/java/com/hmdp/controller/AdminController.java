@@ -0,0 +1,64 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheRebuildExecutor;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.NearCache;
+import com.hmdp.utils.RateLimiter;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * 运维查看缓存运行状态
+ */
+@RestController
+@RequestMapping("/admin")
+public class AdminController {
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private RateLimiter rateLimiter;
+
+    @Resource
+    private NearCache nearCache;
+
+    @Resource
+    private CacheRebuildExecutor rebuildExecutor;
+
+    /**
+     * 当前被钉在本地缓存的热点key
+     */
+    @GetMapping("/cache/hot-keys")
+    public Result queryHotKeys() {
+        return Result.ok(hotKeyDetector.hotKeys());
+    }
+
+    /**
+     * 本地缓存每个前缀的条数、命中率和淘汰次数
+     */
+    @GetMapping("/cache/local-stats")
+    public Result queryLocalCacheStats() {
+        return Result.ok(nearCache.stats());
+    }
+
+    /**
+     * 缓存重建线程池的队列深度、去重和拒绝次数、重建耗时
+     */
+    @GetMapping("/cache/rebuild")
+    public Result queryRebuildMetrics() {
+        return Result.ok(rebuildExecutor.metrics());
+    }
+
+    /**
+     * 各条限流规则的放行、拒绝次数
+     */
+    @GetMapping("/rate-limit")
+    public Result queryRateLimitStats() {
+        return Result.ok(rateLimiter.stats());
+    }
+}
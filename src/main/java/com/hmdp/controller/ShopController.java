@@ -12,6 +12,8 @@ import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.List;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -48,10 +50,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        // 写入数据库并返回店铺id
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -76,12 +76,13 @@ public class ShopController {
             @RequestParam("typeId") Integer typeId,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
+        // 根据类型分页查询，数据库只查id
         Page<Shop> page = shopService.query()
+                .select("id")
                 .eq("type_id", typeId)
                 .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        // 商铺详情批量走缓存，返回数据
+        return Result.ok(shopService.queryByIds(idsOf(page)));
     }
 
     /**
@@ -95,11 +96,16 @@ public class ShopController {
             @RequestParam(value = "name", required = false) String name,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
+        // 根据名称分页查询，数据库只查id
         Page<Shop> page = shopService.query()
+                .select("id")
                 .like(StrUtil.isNotBlank(name), "name", name)
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        // 商铺详情批量走缓存，返回数据
+        return Result.ok(shopService.queryByIds(idsOf(page)));
+    }
+
+    private List<Long> idsOf(Page<Shop> page) {
+        return page.getRecords().stream().map(Shop::getId).collect(Collectors.toList());
     }
 }
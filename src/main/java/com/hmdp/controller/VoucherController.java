@@ -54,4 +54,14 @@ public class VoucherController {
     public Result queryVoucherOfShop(@PathVariable("shopId") Long shopId) {
        return voucherService.queryVoucherOfShop(shopId);
     }
+
+    /**
+     * 修改秒杀券，库存按和原来的差值加减到redis里的库存上，需要登录
+     * @param voucher 优惠券信息，包含秒杀信息
+     * @return 优惠券id
+     */
+    @PutMapping("seckill")
+    public Result updateSeckillVoucher(@RequestBody Voucher voucher) {
+        return voucherService.updateSeckillVoucher(voucher);
+    }
 }
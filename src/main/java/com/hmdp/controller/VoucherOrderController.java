@@ -2,11 +2,16 @@ package com.hmdp.controller;
 
 
 import com.hmdp.dto.Result;
+import com.hmdp.service.IVoucherOrderService;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import javax.annotation.Resource;
+
 /**
  * <p>
  *  前端控制器
@@ -18,8 +23,29 @@ import org.springframework.web.bind.annotation.RestController;
 @RestController
 @RequestMapping("/voucher-order")
 public class VoucherOrderController {
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
-        return Result.fail("功能未完成");
+        return voucherOrderService.seckillVoucher(voucherId);
+    }
+
+    /**
+     * 秒杀排队，返回排队位置和建议的轮询间隔
+     */
+    @PostMapping("seckill/{id}/queue")
+    public Result queueSeckill(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.queueSeckill(voucherId, true, 0);
+    }
+
+    /**
+     * 查询排队状态，attempt是第几次查询
+     */
+    @GetMapping("seckill/{id}/queue")
+    public Result queryQueue(@PathVariable("id") Long voucherId,
+                             @RequestParam(value = "attempt", defaultValue = "0") Integer attempt) {
+        return voucherOrderService.queueSeckill(voucherId, false, attempt);
     }
 }
@@ -0,0 +1,24 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class QueueTicket {
+    private Long voucherId;
+    /**
+     * 是否已经放行，放行后在有效期内可以下单
+     */
+    private Boolean admitted;
+    /**
+     * 前面还有多少人（含自己），已放行时为0
+     */
+    private Long position;
+    /**
+     * 建议多久之后再来查询（毫秒）
+     */
+    private Long retryAfter;
+}
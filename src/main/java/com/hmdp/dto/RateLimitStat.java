@@ -0,0 +1,25 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RateLimitStat {
+    private String rule;
+    private Long allowed;
+    /**
+     * 本地预过滤拒绝的次数，没有访问redis
+     */
+    private Long rejectedLocal;
+    /**
+     * redis令牌桶拒绝的次数
+     */
+    private Long rejectedRemote;
+    /**
+     * redis不可用时直接放行的次数
+     */
+    private Long failOpen;
+}
@@ -3,6 +3,9 @@ package com.hmdp.service;
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.time.Duration;
+import java.util.List;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务类
@@ -13,4 +16,35 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    /**
+     * 把秒杀券的库存和活动时间写入redis，供秒杀脚本使用
+     * 库存只在redis里没有时写入，活动进行中redis里的库存才是准的
+     * @return 新写入库存的个数
+     */
+    long loadToRedis(List<SeckillVoucher> vouchers);
+
+    /**
+     * 新建秒杀券后覆盖写入库存、活动时间，并清除各节点的售罄标记
+     * @param clearBuyers 是否清空已下单用户，新建时为true
+     */
+    void seedToRedis(SeckillVoucher voucher, boolean clearBuyers);
+
+    /**
+     * 修改库存时按差值加减redis里的库存，加了库存的话清除各节点的售罄标记
+     * @return 实际加减的数量，redis里还没有库存时返回null，等预热从数据库写入
+     */
+    Long adjustStockInRedis(Long voucherId, long delta);
+
+    /**
+     * 修改秒杀券后覆盖redis里的活动时间
+     */
+    void updateWindowInRedis(SeckillVoucher voucher);
+
+    /**
+     * 预热还没结束的秒杀券
+     * @param ahead 只预热这么久之内就要开始的券，null表示全部
+     * @return 新写入库存的个数
+     */
+    long preload(Duration ahead);
+
 }
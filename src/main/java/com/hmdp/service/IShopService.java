@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -21,6 +23,20 @@ public interface IShopService extends IService<Shop> {
      */
     Result queryById(Long id);
 
+    /**
+     * 新增商铺，同时把id加进布隆过滤器
+     * @param shop
+     * @return 商铺id
+     */
+    Result saveShop(Shop shop);
+
+    /**
+     * 批量查询商铺，一次MGET，未命中的一次IN查询
+     * @param ids 商铺id
+     * @return 按ids顺序排列的商铺，不存在的跳过
+     */
+    List<Shop> queryByIds(List<Long> ids);
+
     /**
      * 利用setnx原理 用互斥锁来实现缓存击穿的问题
      * @param id
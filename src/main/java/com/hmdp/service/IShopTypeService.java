@@ -17,4 +17,9 @@ public interface IShopTypeService extends IService<ShopType> {
 
     List<ShopType>  queryAllShopType();
 
+    /**
+     * 从数据库重新加载商铺类型并写入redis
+     */
+    List<ShopType> refreshShopTypeCache();
+
 }
@@ -3,9 +3,12 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * <p>
@@ -19,4 +22,29 @@ public interface IUserService extends IService<User> {
 
     Result login(LoginFormDTO loginForm, HttpSession session);
 
+    /**
+     * 登出，删除token并清掉所有节点的本地登录缓存
+     */
+    Result logout(String token);
+
+    /**
+     * 根据id查询用户的公开信息，走缓存
+     * @param id 用户id
+     * @return 用户不存在返回null
+     */
+    UserDTO queryUserById(Long id);
+
+    /**
+     * 批量查询用户的公开信息，一次MGET，未命中的一次IN查询
+     * @param ids 用户id
+     * @return 用户id到用户信息的映射，不存在的用户不在里面
+     */
+    Map<Long, UserDTO> queryUserByIds(Collection<Long> ids);
+
+    /**
+     * 按id分页把所有用户写入手机号缓存，用于启动预热
+     * @return 写入的条数
+     */
+    long warmUpPhoneCache();
+
 }
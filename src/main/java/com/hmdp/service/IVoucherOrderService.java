@@ -2,6 +2,7 @@ package com.hmdp.service;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.dto.Result;
 
 /**
  * <p>
@@ -13,4 +14,15 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IVoucherOrderService extends IService<VoucherOrder> {
 
+    /**
+     * 秒杀下单，资格判断全部在redis里完成，订单异步落库
+     */
+    Result seckillVoucher(Long voucherId);
+
+    /**
+     * 秒杀排队，join为true时不在队列中就加入队尾
+     * @param attempt 客户端第几次轮询，用来算建议的轮询间隔
+     */
+    Result queueSeckill(Long voucherId, boolean join, int attempt);
+
 }
@@ -3,9 +3,22 @@ package com.hmdp.service.impl;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.SeckillStockGuard;
+import com.hmdp.utils.SeckillStockStore;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
@@ -14,7 +27,98 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2022-01-04
  */
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    @Resource
+    private SeckillStockStore seckillStockStore;
+
+    @Resource
+    private SeckillStockGuard seckillStockGuard;
+
+    /**
+     * 提前多久预热秒杀券（毫秒）
+     */
+    @Value("${hmdp.seckill.preload-ahead:600000}")
+    private long preloadAheadMillis;
+
+    /**
+     * 上一轮对账时数据库和redis的差值
+     */
+    private final Map<Long, Long> lastDrift = new ConcurrentHashMap<>();
+
+    @Override
+    public long loadToRedis(List<SeckillVoucher> vouchers) {
+        List<Long> seeded = seckillStockStore.load(vouchers);
+        //新写入的库存相当于补货，清掉各节点的售罄标记
+        seeded.forEach(seckillStockGuard::reset);
+        return seeded.size();
+    }
+
+    @Override
+    public void seedToRedis(SeckillVoucher voucher, boolean clearBuyers) {
+        seckillStockStore.seed(voucher, clearBuyers);
+        seckillStockGuard.reset(voucher.getVoucherId());
+    }
+
+    @Override
+    public Long adjustStockInRedis(Long voucherId, long delta) {
+        Long applied = seckillStockStore.adjust(voucherId, delta);
+        if (applied != null && applied > 0) {
+            seckillStockGuard.reset(voucherId);
+        }
+        return applied;
+    }
+
+    @Override
+    public void updateWindowInRedis(SeckillVoucher voucher) {
+        seckillStockStore.window(voucher);
+    }
+
+    @Override
+    public long preload(Duration ahead) {
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> vouchers = query()
+                .gt("end_time", now)
+                .le(ahead != null, "begin_time", ahead == null ? null : now.plus(ahead))
+                .list();
+        return loadToRedis(vouchers);
+    }
+
+    /**
+     * 定时预热快要开始的秒杀券，新建时写redis失败或者redis被清空过，也能在开始之前补上
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.preload-interval:60000}")
+    public void preloadUpcoming() {
+        long seeded = preload(Duration.ofMillis(preloadAheadMillis));
+        if (seeded > 0) {
+            log.info("预热即将开始的秒杀券{}张", seeded);
+        }
+    }
+
+    /**
+     * 库存对账：redis里的总库存和数据库的库存比较
+     * 订单是异步落库的，数据库比redis多出来的是还在队列里的订单，正常情况下会很快追平；
+     * redis比数据库多说明redis可能超卖，连续两轮差值不变且不为0说明有库存丢了，都打日志报警
+     */
+    @Scheduled(initialDelayString = "${hmdp.seckill.reconcile-interval:60000}", fixedDelayString = "${hmdp.seckill.reconcile-interval:60000}")
+    public void reconcile() {
+        List<SeckillVoucher> vouchers = query().gt("end_time", LocalDateTime.now()).list();
+        for (SeckillVoucher voucher : vouchers) {
+            Long voucherId = voucher.getVoucherId();
+            Long redisStock = seckillStockStore.total(voucherId);
+            if (redisStock == null) {
+                continue;
+            }
+            long drift = voucher.getStock() - redisStock;
+            Long previous = lastDrift.put(voucherId, drift);
+            if (drift < 0) {
+                log.error("库存对账异常，redis库存多于数据库，券：{}，redis：{}，数据库：{}", voucherId, redisStock, voucher.getStock());
+            } else if (drift > 0 && previous != null && previous == drift) {
+                log.warn("库存对账不一致且没有变化，券：{}，redis：{}，数据库：{}", voucherId, redisStock, voucher.getStock());
+            }
+        }
+        lastDrift.keySet().retainAll(vouchers.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toSet()));
+    }
 }
@@ -1,14 +1,16 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheBloomFilter;
+import com.hmdp.utils.NearCache;
 import com.hmdp.utils.RedisClient;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisData;
@@ -17,12 +19,17 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -43,37 +50,56 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private RedisClient redisClient;
 
+    @Resource
+    private NearCache nearCache;
+
+    @Resource
+    private CacheBloomFilter cacheBloomFilter;
+
+    /**
+     * 热门商铺详情走本地缓存，挡掉大部分redis读请求
+     */
+    @PostConstruct
+    public void init() {
+        nearCache.register(CACHE_SHOP_KEY, CACHE_SHOP_LOCAL_SIZE, CACHE_SHOP_LOCAL_TTL, TimeUnit.SECONDS);
+        cacheBloomFilter.register(CACHE_SHOP_KEY, CACHE_SHOP_BLOOM_SIZE, CACHE_BLOOM_FPP, this::queryIdsAfter);
+    }
+
+    /**
+     * 按id游标分页读取商铺id，给布隆过滤器加载用
+     */
+    private List<Long> queryIdsAfter(Long lastId) {
+        return listObjs(new QueryWrapper<Shop>().select("id").gt("id", lastId)
+                        .orderByAsc("id").last("limit " + CACHE_BLOOM_PAGE_SIZE),
+                o -> ((Number) o).longValue());
+    }
+
 //    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
     @Override
     public Result queryById(Long id) {
-        String key = CACHE_SHOP_KEY + id;
-        //1.先去redis中查询
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否为空
-        if (StrUtil.isNotBlank(shopJson)) {
-            //不为空则直接返回
-            return Result.ok(JSONUtil.toBean(shopJson, Shop.class));
-        }
-        //增加一个判断  如果是空则直接返回空数据
-        if (shopJson == null || shopJson.equals("")) {
-            return Result.ok(null);
-        }
-        //如果为空 说明redis没有 要查数据库
-        Shop shop = getById(id);
-        if (shop == null) {
-            //解决缓存穿透的问题  即数据为空也将空对象存入缓存中
-            //设置过期时间为两分钟
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-        }
-        //找到商铺 则先存入redis中  设置过期时间
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop));
-        //设置过期时间
-        stringRedisTemplate.expire(key, CACHE_SHOP_TTL, TimeUnit.MINUTES);
-
+        //缓存穿透交给redisClient：布隆过滤器先挡掉不存在的id，漏过去的再缓存空值
+        Shop shop = redisClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
         return Result.ok(shop);
     }
 
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 新的id放进布隆过滤器，否则会被当成不存在的数据挡掉
+        cacheBloomFilter.add(CACHE_SHOP_KEY, shop.getId());
+        return Result.ok(shop.getId());
+    }
+
+    @Override
+    public List<Shop> queryByIds(List<Long> ids) {
+        Map<Long, Shop> shops = redisClient.queryMany(CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, shop -> shop)),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        return new ArrayList<>(shops.values());
+    }
+
     @Override
     //3.保证原子性
     @Transactional
@@ -84,14 +110,14 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //1.先操作数据库
         updateById(shop);
-        //2.删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        //2.删除缓存  同时通知其他节点删除本地缓存
+        redisClient.evict(CACHE_SHOP_KEY, id);
         return Result.ok();
     }
 
     @Override
     public Shop queryWithLogicExpire(Long id) {
-        return redisClient.queryWithLogicalExpire(CACHE_SHOP_KEY,id,Shop.class,this::getById, 10L,TimeUnit.SECONDS);
+        return redisClient.queryWithLogicalExpire(CACHE_SHOP_KEY,id,Shop.class,this::getById, CACHE_SHOP_LOGICAL_TTL,TimeUnit.SECONDS, CACHE_SHOP_XFETCH_BETA);
     }
 
     //    @Override
@@ -140,67 +166,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
     @Override
     public Result queryWithMutex(Long id) {
-        String key = CACHE_SHOP_KEY + id;
-        //1.先去redis中查询
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否为空
-        if (StrUtil.isNotBlank(shopJson)) {
-            //不为空则直接返回
-            return Result.ok(JSONUtil.toBean(shopJson, Shop.class));
-        }
-        //增加一个判断  如果是空则直接返回空数据
-        //不等于null 那就一定是空字符串
-        if (shopJson !=null ) {
-            return Result.ok(null);
-        }
-        String lockKey = LOCK_SHOP_KEY + id;
-        Shop shop = null;
-        try {
-            //如果为空 说明redis没有 要先获取锁
-            boolean lock = getLock(lockKey);
-            //如果获取到锁 则查询数据库再操作缓存
-            if (lock) {
-                shop = getById(id);
-                if (shop ==null){
-                    stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                    //如果为空则不需要释放锁  不能让他往下走
-                    return Result.ok(null);
-                }
-                else{
-                    //找到商铺 则先存入redis中  设置过期时间
-                    stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop));
-                    //设置过期时间
-                    stringRedisTemplate.expire(key, CACHE_SHOP_TTL, TimeUnit.MINUTES);
-                    Thread.sleep(200);
-                }
-            } else {
-                Thread.sleep(50);
-                //如果没有拿到锁也不能让他释放锁
-                return queryWithMutex(id);
-            }
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            unlock(lockKey);
-        }
+        //缓存重建交给redisClient：同一节点的并发未命中合并成一次，只有一个线程去竞争互斥锁
+        Shop shop = redisClient.queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
         return Result.ok(shop);
-
-    }
-
-    /**
-     * 得到锁  释放锁则直接删除key即可
-     *
-     * @param lockKey
-     * @return
-     */
-    private boolean getLock(String lockKey) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, "1", LOCK_SHOP_TTL, TimeUnit.MINUTES);
-        //利用工具类拆箱
-        return BooleanUtil.isTrue(flag);
-    }
-
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
     }
 
 
@@ -211,12 +179,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      */
     public void saveToRedis(Long id,Long expireSeconds){
         Shop shop = getById(id);
-        //将数据装入redisData中
-        RedisData data = new RedisData();
-        data.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        data.setData(shop);
-        //data对象转成json存储
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY+id,JSONUtil.toJsonStr(data));
+        //带上逻辑过期时间存储，编码格式由redisClient决定
+        redisClient.setWithLogicalExpire(CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
     }
 
 }
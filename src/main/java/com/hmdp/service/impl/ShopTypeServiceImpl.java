@@ -37,9 +37,14 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
             return shopTypes;
         }
         //如果为空 则表明redis中没有要去数据库查
+        return refreshShopTypeCache();
+    }
+
+    @Override
+    public List<ShopType> refreshShopTypeCache() {
         List<ShopType> shopTypes = getBaseMapper().selectList(new QueryWrapper<ShopType>().orderByDesc("sort"));
         //将其存入redis中
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(shopTypes));
+        stringRedisTemplate.opsForValue().set(SHOP_TYPE_KEY,JSONUtil.toJsonStr(shopTypes));
         return shopTypes;
     }
 }
@@ -4,6 +4,8 @@ import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.bean.copier.CopyOptions;
 import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.fasterxml.jackson.datatype.jsr310.ser.LocalDateTimeSerializer;
 import com.hmdp.dto.LoginFormDTO;
@@ -12,19 +14,36 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheBloomFilter;
+import com.hmdp.utils.RedisClient;
 import com.hmdp.utils.RegexUtils;
+import com.hmdp.utils.SessionCache;
+import com.hmdp.utils.SignedToken;
+import com.hmdp.utils.StripedLock;
 import org.springframework.beans.BeanUtils;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Service;
-import org.springframework.util.StringUtils;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
@@ -42,6 +61,39 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisClient redisClient;
+
+    @Resource
+    private CacheBloomFilter cacheBloomFilter;
+
+    @Resource
+    private SessionCache sessionCache;
+
+    @Resource
+    private SignedToken signedToken;
+
+    @Resource
+    private StripedLock stripedLock;
+
+    /**
+     * 等待同一手机号注册锁的时间（毫秒）
+     */
+    private static final long PHONE_LOCK_WAIT_MILLIS = 500L;
+
+    private static final DefaultRedisScript<Long> LOGIN_CODE_SCRIPT;
+
+    static {
+        LOGIN_CODE_SCRIPT = new DefaultRedisScript<>();
+        LOGIN_CODE_SCRIPT.setLocation(new ClassPathResource("lua/login_code.lua"));
+        LOGIN_CODE_SCRIPT.setResultType(Long.class);
+    }
+
+    @PostConstruct
+    public void init() {
+        cacheBloomFilter.register(CACHE_USER_KEY, CACHE_USER_BLOOM_SIZE, CACHE_BLOOM_FPP, this::queryIdsAfter);
+    }
+
     @Override
     public Result login(LoginFormDTO loginForm, HttpSession session) {
         // 1.校验手机号
@@ -50,52 +102,195 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
             // 2.如果不符合，返回错误信息
             return Result.fail("手机号格式错误！");
         }
-        // 3.校验验证码  从redis中去取code
-//        Object cacheCode = session.getAttribute("code");
-        String cacheCode = stringRedisTemplate.opsForValue().get(LOGIN_CODE_KEY + phone);
-        String code = loginForm.getCode();
-        if (StringUtils.isEmpty(cacheCode)) {
-            return Result.fail("redis中验证码为空");
+        String code = StrUtil.nullToEmpty(loginForm.getCode());
+        // 3.校验并删除验证码，同一个pipeline里顺便读手机号缓存，一次往返
+        //验证码通过之前不查库、不写手机号缓存，随便填的手机号打不到数据库
+        byte[] script = LOGIN_CODE_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.eval(script, ReturnType.INTEGER, 1, rawKey(LOGIN_CODE_KEY + phone), rawKey(code));
+            connection.get(rawKey(CACHE_PHONE_KEY + phone));
+            return null;
+        }, RedisSerializer.byteArray());
+        long checked = ((Number) results.get(0)).longValue();
+        if (checked != 0) {
+            return Result.fail(checked == 2 ? "redis中验证码为空" : "验证码错误");
         }
-        if (!cacheCode.equals(code)) {
-            //3.不一致，报错
-            return Result.fail("验证码错误");
+        // 4.根据手机号查询用户  缓存命中直接用，没有缓存才查库；缓存的空值说明是新用户
+        //为了保密数据 缓存和登录态里都只存userDto
+        byte[] cached = (byte[]) results.get(1);
+        UserDTO userDTO = cached == null
+                ? queryUserByPhone(phone)
+                : redisClient.decodeCached(CACHE_PHONE_KEY, phone, cached, UserDTO.class);
+        // 5.新用户：验证码通过了才能建账号
+        if (userDTO == null) {
+            userDTO = createUserWithPhone(phone);
         }
-        //一致，根据手机号查询用户
-        User user = query().eq("phone", phone).one();
-
-        //5.判断用户是否存在
-        if (user == null) {
-            //不存在，则创建
-            user = createUserWithPhone(phone);
+        //签名token模式  用户信息签在token里，不写redis
+        if (signedToken.isEnabled()) {
+            return Result.ok(signedToken.issue(userDTO));
         }
-
-        //生成token
+        // 6.生成token，写登录态、设置过期时间在一个pipeline里
         String token = UUID.randomUUID().toString(true);
-        //为了保密数据 将user对象转为userDto对象存储
-        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
-        //使用hutool的工具类，将userdto转为map存储，其中的id为long需要做特殊处理  不懂就点进去看看属性
-        Map<String, Object> userMap = BeanUtil.beanToMap(userDTO, new HashMap<>(),
-                CopyOptions.create().setIgnoreNullValue(true).setFieldValueEditor(
-                        (fileName, fileValue) -> {
-                            return fileValue.toString();
-                        }
-                ));
-        //选择hash存入redis中
-        String tokenKey = LOGIN_USER_KEY + token;
-        stringRedisTemplate.opsForHash().putAll(tokenKey, userMap);
-        //设置token的过期时间  这边忘了怎么写
-         stringRedisTemplate.expire(tokenKey,LOGIN_USER_TTL, TimeUnit.MINUTES);
+        UserDTO user = userDTO;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            writeSession(connection, LOGIN_USER_KEY + token, user);
+            return null;
+        });
         //将token返回给前端
         return Result.ok(token);
     }
 
-    private User createUserWithPhone(String phone) {
+    /**
+     * 登录态用hash存，id为long需要转成字符串
+     */
+    private static void writeSession(RedisConnection connection, String tokenKey, UserDTO userDTO) {
+        Map<byte[], byte[]> userMap = new HashMap<>();
+        BeanUtil.beanToMap(userDTO, new HashMap<>(), CopyOptions.create().setIgnoreNullValue(true))
+                .forEach((field, value) -> userMap.put(rawKey(field), rawKey(value.toString())));
+        byte[] key = rawKey(tokenKey);
+        connection.hMSet(key, userMap);
+        connection.pExpire(key, TimeUnit.MINUTES.toMillis(LOGIN_USER_TTL));
+    }
+
+    private static byte[] rawKey(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private UserDTO queryUserByPhone(String phone) {
+        return redisClient.queryWithPassThrough(CACHE_PHONE_KEY, phone, UserDTO.class, p -> {
+            User user = query().eq("phone", p).one();
+            return user == null ? null : BeanUtil.copyProperties(user, UserDTO.class);
+        }, CACHE_PHONE_TTL, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public Result logout(String token) {
+        if (StrUtil.isBlank(token)) {
+            return Result.ok();
+        }
+        if (signedToken.isEnabled() && token.indexOf('.') > 0) {
+            signedToken.revoke(token);
+        } else {
+            sessionCache.invalidate(token);
+        }
+        return Result.ok();
+    }
+
+    @Override
+    public UserDTO queryUserById(Long id) {
+        return redisClient.queryWithPassThrough(CACHE_USER_KEY, id, UserDTO.class, this::getUserDTO, CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public Map<Long, UserDTO> queryUserByIds(Collection<Long> ids) {
+        return redisClient.queryMany(CACHE_USER_KEY, ids, UserDTO.class,
+                missIds -> listByIds(missIds).stream().collect(
+                        Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 更新用户后刷新缓存：id缓存按老规矩删除并通知各节点，手机号缓存直接写入新值；
+     * 改了手机号或者用户在这期间被删掉时旧手机号的缓存删掉
+     */
+    @Override
+    public boolean updateById(User entity) {
+        User old = getById(entity.getId());
+        if (!super.updateById(entity) || old == null) {
+            return false;
+        }
+        redisClient.evict(CACHE_USER_KEY, old.getId());
+        User updated = getById(old.getId());
+        boolean phoneChanged = updated == null || !Objects.equals(old.getPhone(), updated.getPhone());
+        if (phoneChanged && old.getPhone() != null) {
+            redisClient.evict(CACHE_PHONE_KEY, old.getPhone());
+        }
+        if (updated != null && updated.getPhone() != null) {
+            cachePhone(updated);
+        }
+        return true;
+    }
+
+    @Override
+    public long warmUpPhoneCache() {
+        long lastId = 0;
+        long written = 0;
+        while (true) {
+            List<User> page = query().select("id", "phone", "nick_name", "icon")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + CACHE_WARM_UP_PAGE_SIZE)
+                    .list();
+            if (page.isEmpty()) {
+                break;
+            }
+            lastId = page.get(page.size() - 1).getId();
+            Map<String, UserDTO> users = new HashMap<>(page.size() * 2);
+            page.forEach(user -> users.put(user.getPhone(), BeanUtil.copyProperties(user, UserDTO.class)));
+            //每页的过期时间加一点随机，避免预热的key同一时刻一起过期
+            long ttl = TimeUnit.MINUTES.toSeconds(CACHE_PHONE_TTL) + RandomUtil.randomLong(CACHE_PHONE_TTL_JITTER);
+            redisClient.setMany(CACHE_PHONE_KEY, users, ttl, TimeUnit.SECONDS);
+            written += users.size();
+            if (page.size() < CACHE_WARM_UP_PAGE_SIZE) {
+                break;
+            }
+        }
+        return written;
+    }
+
+    private UserDTO getUserDTO(Long id) {
+        User user = getById(id);
+        return user == null ? null : BeanUtil.copyProperties(user, UserDTO.class);
+    }
+
+    /**
+     * 按id游标分页读取用户id，给布隆过滤器加载用
+     */
+    private List<Long> queryIdsAfter(Long lastId) {
+        return listObjs(new QueryWrapper<User>().select("id").gt("id", lastId)
+                        .orderByAsc("id").last("limit " + CACHE_BLOOM_PAGE_SIZE),
+                o -> ((Number) o).longValue());
+    }
+
+    /**
+     * 同一个手机号并发注册时只放一个去插入，其他的等它插完直接查出来
+     * 锁等不到或者锁失效时，还有uniqe_key_phone唯一索引兜底，插入冲突就改成查询
+     */
+    private UserDTO createUserWithPhone(String phone) {
+        String lockKey = LOCK_PHONE_KEY + phone;
+        if (!stripedLock.tryLock(lockKey, PHONE_LOCK_WAIT_MILLIS, TimeUnit.MILLISECONDS, true)) {
+            return insertOrQuery(phone);
+        }
+        try {
+            User existing = query().eq("phone", phone).one();
+            return existing != null ? cachePhone(existing) : insertOrQuery(phone);
+        } finally {
+            stripedLock.unlock(lockKey, true);
+        }
+    }
+
+    private UserDTO insertOrQuery(String phone) {
         User user = new User();
         user.setPhone(phone);
         user.setNickName(USER_NICK_NAME_PREFIX + "_" + RandomUtil.randomString(10));
         user.setCreateTime(LocalDateTime.now());
-        save(user);
-        return user;
+        try {
+            save(user);
+            //新用户的id放进布隆过滤器
+            cacheBloomFilter.add(CACHE_USER_KEY, user.getId());
+        } catch (DuplicateKeyException e) {
+            //别的请求刚插入了同一个手机号
+            user = query().eq("phone", phone).one();
+        }
+        return cachePhone(user);
+    }
+
+    /**
+     * 写入手机号缓存，覆盖掉登录时查询留下的空值缓存
+     */
+    private UserDTO cachePhone(User user) {
+        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
+        redisClient.set(CACHE_PHONE_KEY + user.getPhone(), userDTO, CACHE_PHONE_TTL, TimeUnit.MINUTES);
+        return userDTO;
     }
 }
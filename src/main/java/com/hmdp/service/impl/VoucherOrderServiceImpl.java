@@ -1,10 +1,69 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.QueueTicket;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillStockGuard;
+import com.hmdp.utils.SeckillStockStore;
+import com.hmdp.utils.SeckillWaitingRoom;
+import com.hmdp.utils.StripedLock;
+import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.LOCK_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.SeckillStockStore.CODE_NOT_LOADED;
+import static com.hmdp.utils.SeckillStockStore.CODE_SOLD_OUT;
+import static com.hmdp.utils.SeckillStockStore.CODE_SUCCESS;
 
 /**
  * <p>
@@ -14,7 +73,452 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Resource
+    private SeckillStockGuard seckillStockGuard;
+
+    @Resource
+    private SeckillStockStore seckillStockStore;
+
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
+
+    @Resource
+    private StripedLock stripedLock;
+
+    /**
+     * 脚本的返回码对应的提示，0是成功
+     */
+    private static final String[] SECKILL_FAIL_MESSAGES = {
+            null, "库存不足", "不能重复下单", "秒杀尚未开始", "秒杀已经结束", "秒杀券不存在"
+    };
+
+    /**
+     * 每个订单队列的消费线程数，每个线程是消费者组里的一个消费者，分段模式下线程总数是队列数乘以这个值
+     */
+    @Value("${hmdp.seckill.order.consumers:2}")
+    private int consumerCount;
+
+    /**
+     * 一次最多读多少条消息，一批消息一次插入、一次扣库存
+     */
+    @Value("${hmdp.seckill.order.batch-size:100}")
+    private int batchSize;
+
+    /**
+     * 消费者名字的前缀，重启后要保持不变才能接着处理自己pending里的消息，默认用主机名
+     */
+    @Value("${hmdp.seckill.order.consumer-name:}")
+    private String consumerName;
+
+    /**
+     * 别的消费者的消息超过多久没有确认就接管过来（毫秒），处理节点下线后留下的消息
+     */
+    @Value("${hmdp.seckill.order.claim-idle:60000}")
+    private long claimIdleMillis;
+
+    /**
+     * 一条消息投递这么多次还处理失败，就转到死信队列并确认，不再挡住后面的消息
+     */
+    @Value("${hmdp.seckill.order.max-deliveries:5}")
+    private long maxDeliveries;
+
+    /**
+     * 秒杀券没有预热到redis时，是否直接走数据库下单
+     * 打开后请求线程会查库、加锁、开事务，不存在的券id也会打到数据库，默认关闭，没预热的券直接返回失败等定时预热
+     */
+    @Value("${hmdp.seckill.db-fallback:false}")
+    private boolean dbFallback;
+
+    /**
+     * 数据库下单时等待同一用户锁的时间（毫秒）
+     */
+    private static final long USER_LOCK_WAIT_MILLIS = 500L;
+
+    private ExecutorService orderExecutor;
+
+    /**
+     * 每个队列的每个消费者是否需要先处理pending里的消息
+     */
+    private final Map<String, AtomicBoolean[]> recovering = new HashMap<>();
+
+    private volatile boolean running = true;
+
+    /**
+     * 要消费的订单队列，分段模式下每一段一个
+     */
+    private List<String> streams;
+
+    @PostConstruct
+    public void init() {
+        if (StrUtil.isBlank(consumerName)) {
+            consumerName = NetUtil.getLocalHostName();
+        }
+        streams = seckillStockStore.streams();
+        streams.forEach(this::createGroupIfAbsent);
+        // 每个队列单独一组消费线程，一条XREADGROUP只读一个队列，集群模式下各段的队列在不同的槽上，不能一起读
+        orderExecutor = Executors.newFixedThreadPool(streams.size() * consumerCount, new NamedThreadFactory("seckill-order-", false));
+        for (String stream : streams) {
+            AtomicBoolean[] flags = new AtomicBoolean[consumerCount];
+            recovering.put(stream, flags);
+            for (int i = 0; i < consumerCount; i++) {
+                // 启动时先把上次没确认的消息处理掉
+                flags[i] = new AtomicBoolean(true);
+                int index = i;
+                orderExecutor.submit(() -> consume(stream, index));
+            }
+        }
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        running = false;
+        orderExecutor.shutdown();
+        // 处理到一半的批次没确认也没关系，重启后从pending里再处理一遍
+        if (!orderExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+            orderExecutor.shutdownNow();
+        }
+    }
+
+    @Override
+    public Result seckillVoucher(Long voucherId) {
+        // 0.本节点已经知道卖完了，直接拒绝，不用出JVM
+        if (seckillStockGuard.isSoldOut(voucherId)) {
+            return Result.fail(SECKILL_FAIL_MESSAGES[CODE_SOLD_OUT]);
+        }
+        Long userId = UserHolder.getUser().getId();
+        // 0.1开启排队时，只有排到并且还在有效期内的用户才能下单
+        boolean queued = seckillWaitingRoom.isEnabled();
+        if (queued && !seckillWaitingRoom.isAdmitted(voucherId, userId)) {
+            return Result.fail("请先排队");
+        }
+        long orderId = redisIdWorker.nextId("order");
+        // 1.时间、库存、一人一单都在脚本里原子判断，通过了直接发到消息队列，请求线程不碰数据库
+        long[] reply = seckillStockStore.admit(voucherId, userId, orderId);
+        int result = (int) reply[0];
+        if (result == CODE_NOT_LOADED && dbFallback) {
+            // 1.1redis里还没有这张券，退回数据库下单，数据库给出的结果也是最终结果，放行资格同样用掉了
+            try {
+                return seckillFromDb(voucherId, userId, orderId);
+            } finally {
+                if (queued) {
+                    seckillWaitingRoom.release(voucherId, userId);
+                }
+            }
+        }
+        if (result == CODE_SUCCESS || result == CODE_SOLD_OUT) {
+            // 1.2记下剩余库存，卖完了就标记售罄
+            seckillStockGuard.observe(voucherId, reply[1]);
+        }
+        if (queued && result >= CODE_SUCCESS && result != CODE_NOT_LOADED) {
+            // 1.3已经有了确定的结果，放行资格用掉了
+            seckillWaitingRoom.release(voucherId, userId);
+        }
+        if (result != CODE_SUCCESS) {
+            return Result.fail(result > 0 && result < SECKILL_FAIL_MESSAGES.length ? SECKILL_FAIL_MESSAGES[result] : "系统繁忙，请稍后再试");
+        }
+        // 2.订单已经在消息队列里了，直接返回订单id
+        return Result.ok(orderId);
+    }
+
+    /**
+     * 数据库下单：一人一单没有redis的set可用，靠同一用户的锁串行化“查订单-扣库存-插订单”
+     * 锁用分段锁，同一节点上同一用户的请求先在本地排队，不同用户基本不会互相阻塞；
+     * 事务提交之后才释放锁，否则下一个请求可能查不到刚插入的订单
+     */
+    private Result seckillFromDb(Long voucherId, Long userId, long orderId) {
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (voucher == null) {
+            return Result.fail(SECKILL_FAIL_MESSAGES[CODE_NOT_LOADED]);
+        }
+        LocalDateTime now = LocalDateTime.now();
+        if (voucher.getBeginTime().isAfter(now)) {
+            return Result.fail("秒杀尚未开始");
+        }
+        if (voucher.getEndTime().isBefore(now)) {
+            return Result.fail("秒杀已经结束");
+        }
+        if (voucher.getStock() < 1) {
+            return Result.fail(SECKILL_FAIL_MESSAGES[CODE_SOLD_OUT]);
+        }
+        String lockKey = LOCK_ORDER_KEY + userId;
+        if (!stripedLock.tryLock(lockKey, USER_LOCK_WAIT_MILLIS, TimeUnit.MILLISECONDS, true)) {
+            return Result.fail("系统繁忙，请稍后再试");
+        }
+        Result result;
+        try {
+            result = transactionTemplate.execute(status -> createOrder(voucherId, userId, orderId));
+        } finally {
+            stripedLock.unlock(lockKey, true);
+        }
+        if (result != null && Boolean.TRUE.equals(result.getSuccess())) {
+            // 之后预热到redis时，这个用户已经下过单了
+            stringRedisTemplate.opsForSet().add(SeckillStockStore.buyersKey(voucherId), userId.toString());
+        }
+        return result;
+    }
+
+    private Result createOrder(Long voucherId, Long userId, long orderId) {
+        // 1.一人一单
+        Integer count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
+        if (count > 0) {
+            return Result.fail("不能重复下单");
+        }
+        // 2.扣库存，库存大于0才扣
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - 1")
+                .eq("voucher_id", voucherId)
+                .gt("stock", 0)
+                .update();
+        if (!success) {
+            return Result.fail(SECKILL_FAIL_MESSAGES[CODE_SOLD_OUT]);
+        }
+        // 3.创建订单
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(orderId);
+        voucherOrder.setUserId(userId);
+        voucherOrder.setVoucherId(voucherId);
+        save(voucherOrder);
+        return Result.ok(orderId);
+    }
+
+    @Override
+    public Result queueSeckill(Long voucherId, boolean join, int attempt) {
+        // 卖完了不用再排
+        if (seckillStockGuard.isSoldOut(voucherId)) {
+            return Result.fail(SECKILL_FAIL_MESSAGES[CODE_SOLD_OUT]);
+        }
+        Long userId = UserHolder.getUser().getId();
+        long[] reply = seckillWaitingRoom.ticket(voucherId, userId, join);
+        int code = (int) reply[0];
+        if (code == SeckillWaitingRoom.CODE_ADMITTED) {
+            return Result.ok(new QueueTicket(voucherId, true, 0L, 0L));
+        }
+        if (code == SeckillWaitingRoom.CODE_QUEUED) {
+            return Result.ok(new QueueTicket(voucherId, false, reply[1], seckillWaitingRoom.backoff(reply[1], attempt)));
+        }
+        if (code == SeckillWaitingRoom.CODE_NOT_QUEUED) {
+            return Result.fail("不在队列中");
+        }
+        return Result.fail(code > 0 && code < SECKILL_FAIL_MESSAGES.length ? SECKILL_FAIL_MESSAGES[code] : "系统繁忙，请稍后再试");
+    }
+
+    private void consume(String stream, int index) {
+        Consumer consumer = Consumer.from(SECKILL_ORDER_GROUP, consumerName + "-" + index);
+        AtomicBoolean recovering = this.recovering.get(stream)[index];
+        while (running) {
+            try {
+                // 1.pending里有没确认的消息先处理，处理完再读新消息
+                boolean pending = recovering.get();
+                StreamReadOptions options = StreamReadOptions.empty().count(batchSize);
+                if (!pending) {
+                    options = options.block(Duration.ofSeconds(2));
+                }
+                ReadOffset readOffset = pending ? ReadOffset.from("0") : ReadOffset.lastConsumed();
+                List<MapRecord<String, Object, Object>> records = read(consumer, options, StreamOffset.create(stream, readOffset));
+                if (records == null || records.isEmpty()) {
+                    recovering.set(false);
+                    continue;
+                }
+                // 2.整批落库，成功后再确认
+                handleRecords(records);
+            } catch (Exception e) {
+                if (!running) {
+                    return;
+                }
+                // 3.失败的消息还在pending里，下一轮重新处理
+                log.error("处理秒杀订单消息失败", e);
+                recovering.set(true);
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 读一个队列，可变参数只传了一个确定类型的offset，不会有堆污染
+     */
+    @SuppressWarnings("unchecked")
+    private List<MapRecord<String, Object, Object>> read(Consumer consumer, StreamReadOptions options, StreamOffset<String> offset) {
+        return stringRedisTemplate.opsForStream().read(consumer, options, offset);
+    }
+
+    /**
+     * 整批落库失败时逐条重试，把有问题的那条找出来，同一批里别的订单照常落库
+     * 逐条也失败的消息留在pending里等下一轮；投递次数到了上限并且不是数据库、网络这类暂时性的错误，就转到死信队列
+     */
+    private void handleRecords(List<MapRecord<String, Object, Object>> records) {
+        if (records.size() > 1) {
+            try {
+                saveRecords(records);
+                return;
+            } catch (Exception e) {
+                log.warn("秒杀订单整批落库失败，逐条重试，条数：{}", records.size(), e);
+            }
+        }
+        Exception failure = null;
+        for (MapRecord<String, Object, Object> record : records) {
+            try {
+                saveRecords(Collections.singletonList(record));
+            } catch (Exception e) {
+                if (!isTransient(e) && deliveryCount(record) >= maxDeliveries) {
+                    deadLetter(record, e);
+                } else {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw new IllegalStateException("秒杀订单消息处理失败", failure);
+        }
+    }
+
+    private void saveRecords(List<MapRecord<String, Object, Object>> records) {
+        List<VoucherOrder> orders = records.stream()
+                .map(record -> BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true))
+                .collect(Collectors.toList());
+        saveOrders(orders);
+        records.stream()
+                .collect(Collectors.groupingBy(MapRecord::getStream, Collectors.mapping(MapRecord::getId, Collectors.toList())))
+                .forEach((stream, ids) -> stringRedisTemplate.opsForStream()
+                        .acknowledge(stream, SECKILL_ORDER_GROUP, ids.toArray(new RecordId[0])));
+    }
+
+    /**
+     * 数据库连不上、超时、死锁这类错误过一会儿就好了，不算消息本身的问题
+     */
+    private static boolean isTransient(Exception e) {
+        return e instanceof TransientDataAccessException
+                || e instanceof RecoverableDataAccessException
+                || e instanceof DataAccessResourceFailureException;
+    }
+
+    /**
+     * 消息被投递的次数，从pending列表里查
+     */
+    private long deliveryCount(MapRecord<String, Object, Object> record) {
+        String id = record.getId().getValue();
+        PendingMessages pending = stringRedisTemplate.opsForStream()
+                .pending(record.getStream(), SECKILL_ORDER_GROUP, Range.closed(id, id), 1L);
+        return pending.isEmpty() ? 0 : pending.get(0).getTotalDeliveryCount();
+    }
+
+    /**
+     * 转到死信队列再确认，这条订单在redis里已经扣了库存，要人工补单或者退库存
+     */
+    private void deadLetter(MapRecord<String, Object, Object> record, Exception e) {
+        Map<Object, Object> value = new HashMap<>(record.getValue());
+        value.put("stream", record.getStream());
+        value.put("recordId", record.getId().getValue());
+        value.put("error", String.valueOf(e.getMessage()));
+        stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DLQ, value);
+        stringRedisTemplate.opsForStream().acknowledge(record.getStream(), SECKILL_ORDER_GROUP, record.getId());
+        log.error("秒杀订单消息多次处理失败，转入死信队列：{}，内容：{}", record.getId(), record.getValue(), e);
+    }
+
+    /**
+     * 一批订单在一个事务里落库：每张券一条多行插入，再按实际插入的行数扣一次库存
+     * 消息重复投递时重复的订单插入被忽略，库存也不会重复扣
+     */
+    private void saveOrders(List<VoucherOrder> orders) {
+        Map<Long, List<VoucherOrder>> byVoucher = orders.stream().collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        transactionTemplate.executeWithoutResult(status -> byVoucher.forEach((voucherId, list) -> {
+            int inserted = getBaseMapper().insertIgnoreBatch(list);
+            if (inserted < list.size()) {
+                checkIgnored(voucherId, list);
+            }
+            if (inserted == 0) {
+                return;
+            }
+            // redis已经保证了不超卖，数据库库存不够扣说明两边对不上，订单照常保存，报警等对账
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + inserted)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", inserted)
+                    .update();
+            if (!success) {
+                log.error("秒杀券数据库库存不足，未扣减，券：{}，订单数：{}", voucherId, inserted);
+            }
+        }));
+    }
+
+    /**
+     * 插入的行数比订单少时，区分是重复投递（订单已经在库里）还是被忽略掉了（比如违反了别的唯一约束），后者是真的丢了订单
+     */
+    private void checkIgnored(Long voucherId, List<VoucherOrder> list) {
+        List<Long> ids = list.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        Set<Long> existing = listByIds(ids).stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        List<Long> lost = ids.stream().filter(id -> !existing.contains(id)).collect(Collectors.toList());
+        if (lost.isEmpty()) {
+            log.debug("重复投递的秒杀订单：{}", ids.size());
+            return;
+        }
+        log.error("秒杀订单插入被忽略，订单丢失，券：{}，订单：{}", voucherId, lost);
+    }
+
+    /**
+     * 接管下线节点留下的消息：别的消费者超过claim-idle还没确认的消息转给本节点这个队列的第一个消费者，它会从pending里读出来处理
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.order.claim-idle:60000}")
+    public void claimIdleOrders() {
+        streams.forEach(this::claimIdleOrders);
+    }
+
+    private void claimIdleOrders(String stream) {
+        String owner = consumerName + "-0";
+        PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                .pending(stream, SECKILL_ORDER_GROUP, Range.unbounded(), batchSize);
+        List<RecordId> idle = new ArrayList<>();
+        for (PendingMessage message : pendingMessages) {
+            if (!message.getConsumerName().startsWith(consumerName + "-")
+                    && message.getElapsedTimeSinceLastDelivery().toMillis() >= claimIdleMillis) {
+                idle.add(message.getId());
+            }
+        }
+        if (idle.isEmpty()) {
+            return;
+        }
+        RedisStreamCommands.XClaimOptions options = RedisStreamCommands.XClaimOptions
+                .minIdle(Duration.ofMillis(claimIdleMillis))
+                .ids(idle.toArray(new RecordId[0]));
+        List<RecordId> claimed = stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                connection.streamCommands().xClaimJustId(rawKey(stream), SECKILL_ORDER_GROUP, owner, options));
+        if (claimed != null && !claimed.isEmpty()) {
+            log.warn("接管了{}条超时未确认的秒杀订单消息", claimed.size());
+            recovering.get(stream)[0].set(true);
+        }
+    }
+
+    private void createGroupIfAbsent(String stream) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                    connection.streamCommands().xGroupCreate(rawKey(stream), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (DataAccessException e) {
+            // BUSYGROUP，消费者组已经存在
+            log.debug("消费者组已存在：{}", SECKILL_ORDER_GROUP);
+        }
+    }
+
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
 }
@@ -7,8 +7,11 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
@@ -21,6 +24,7 @@ import java.util.List;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
@@ -47,5 +51,82 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        // 事务提交之后再把库存、活动时间写入redis，并清空已下单用户，回滚了就不写
+        afterCommit(() -> seckillVoucherService.seedToRedis(seckillVoucher, true));
+    }
+
+    @Override
+    @Transactional
+    public Result updateSeckillVoucher(Voucher voucher) {
+        Long voucherId = voucher.getId();
+        // 锁住秒杀券这一行，和订单落库扣库存串行
+        SeckillVoucher old = seckillVoucherService.query()
+                .eq("voucher_id", voucherId).last("for update").one();
+        if (old == null) {
+            return Result.fail("秒杀券不存在！");
+        }
+        // 修改优惠券
+        updateById(voucher);
+        // 修改库存：开卖之后redis里的库存已经被扣过，不能用数据库的数覆盖，只按差值加减
+        if (voucher.getStock() != null && !voucher.getStock().equals(old.getStock())) {
+            long delta = voucher.getStock() - old.getStock();
+            // 在提交之前改redis：这时候已经写入redis的库存一定是按旧库存写的，加上差值正好；
+            // 还没写入的，之后预热读到的不管是新是旧都不会超卖
+            Long applied = seckillVoucherService.adjustStockInRedis(voucherId, delta);
+            if (applied != null) {
+                // 减库存最多减到redis里剩下的，数据库跟着减同样多
+                delta = applied;
+                afterRollback(() -> seckillVoucherService.adjustStockInRedis(voucherId, -applied));
+            }
+            seckillVoucherService.update()
+                    .setSql("stock = stock + " + delta)
+                    .eq("voucher_id", voucherId)
+                    .update();
+        }
+        // 修改活动时间
+        SeckillVoucher seckillVoucher = new SeckillVoucher();
+        seckillVoucher.setVoucherId(voucherId);
+        seckillVoucher.setBeginTime(voucher.getBeginTime());
+        seckillVoucher.setEndTime(voucher.getEndTime());
+        seckillVoucherService.updateById(seckillVoucher);
+        // 提交之后覆盖redis里的活动时间，已下单用户保留
+        SeckillVoucher updated = seckillVoucherService.getById(voucherId);
+        afterCommit(() -> seckillVoucherService.updateWindowInRedis(updated));
+        return Result.ok(voucherId);
+    }
+
+    /**
+     * 当前事务提交之后执行，写redis失败只记日志，定时预热会在活动开始前补上
+     */
+    private void afterCommit(Runnable action) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                try {
+                    action.run();
+                } catch (Exception e) {
+                    log.error("秒杀券写入redis失败", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 当前事务回滚之后执行，把提交前改过的redis改回去
+     */
+    private void afterRollback(Runnable action) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status != STATUS_ROLLED_BACK) {
+                    return;
+                }
+                try {
+                    action.run();
+                } catch (Exception e) {
+                    log.error("秒杀券回滚redis库存失败", e);
+                }
+            }
+        });
     }
 }
@@ -0,0 +1,308 @@
+package com.hmdp.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 紧凑的二进制格式，只支持注册过schema的类型
+ * 格式：魔数(1) 格式版本(1) 标志位(1) schema编号(varint) schema版本(varint)
+ *      [逻辑过期毫秒(varint)] [上次重建耗时毫秒(varint)] 空值位图(varint) 字段...
+ * 字段按schema里固定的顺序写，不写字段名；整数用zigzag varint，字符串用utf-8加长度前缀
+ * 新增字段只能追加在最后，老数据里没有的字段读出来是null
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    public static final String NAME = "binary";
+
+    /**
+     * json一定以可见字符开头，用一个非ascii的字节做魔数区分
+     */
+    public static final byte MAGIC = (byte) 0xC7;
+    private static final byte FORMAT_VERSION = 1;
+    private static final int FLAG_LOGICAL_EXPIRE = 1;
+    private static final int FLAG_REBUILD_MILLIS = 2;
+
+    /**
+     * 每个类型的读写方式
+     */
+    public interface Schema<T> {
+        /**
+         * schema编号，写进数据里，同一个类型永远不能变
+         */
+        int id();
+
+        /**
+         * 字段发生不兼容变化时加一
+         */
+        int version();
+
+        Class<T> type();
+
+        void write(T value, Writer writer);
+
+        T read(Reader reader, int version);
+    }
+
+    private final Map<Class<?>, Schema<?>> schemasByType = new HashMap<>();
+    private final Map<Integer, Schema<?>> schemasById = new HashMap<>();
+
+    public BinaryCacheCodec() {
+        register(new CacheSchemas.ShopSchema());
+        register(new CacheSchemas.ShopTypeSchema());
+        register(new CacheSchemas.VoucherSchema());
+        register(new CacheSchemas.UserDTOSchema());
+    }
+
+    public void register(Schema<?> schema) {
+        schemasByType.put(schema.type(), schema);
+        schemasById.put(schema.id(), schema);
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public boolean supports(Class<?> type) {
+        return schemasByType.containsKey(type);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public byte[] encode(RedisData redisData) {
+        Object value = redisData.getData();
+        LocalDateTime expireTime = redisData.getExpireTime();
+        Long rebuildMillis = redisData.getRebuildMillis();
+        Schema<Object> schema = (Schema<Object>) schemasByType.get(value.getClass());
+        if (schema == null) {
+            throw new IllegalArgumentException("没有注册二进制schema：" + value.getClass().getName());
+        }
+        Writer writer = new Writer();
+        writer.raw(MAGIC);
+        writer.raw(FORMAT_VERSION);
+        int flags = (expireTime == null ? 0 : FLAG_LOGICAL_EXPIRE) | (rebuildMillis == null ? 0 : FLAG_REBUILD_MILLIS);
+        writer.raw((byte) flags);
+        writer.varint(schema.id());
+        writer.varint(schema.version());
+        if (expireTime != null) {
+            writer.varint(toMillis(expireTime));
+        }
+        if (rebuildMillis != null) {
+            writer.varint(rebuildMillis);
+        }
+        writer.beginFields();
+        schema.write(value, writer);
+        return writer.endFields();
+    }
+
+    @Override
+    public boolean canDecode(byte[] bytes) {
+        return bytes.length > 1 && bytes[0] == MAGIC && bytes[1] == FORMAT_VERSION;
+    }
+
+    @Override
+    public RedisData decode(byte[] bytes, Class<?> type) {
+        Reader reader = new Reader(bytes, 2);
+        int flags = reader.raw();
+        Schema<?> schema = schemasById.get((int) reader.varint());
+        if (schema == null || !type.isAssignableFrom(schema.type())) {
+            throw new IllegalStateException("二进制缓存的类型和期望的不一致：" + type.getName());
+        }
+        int version = (int) reader.varint();
+        RedisData redisData = new RedisData();
+        if ((flags & FLAG_LOGICAL_EXPIRE) != 0) {
+            redisData.setExpireTime(fromMillis(reader.varint()));
+        }
+        if ((flags & FLAG_REBUILD_MILLIS) != 0) {
+            redisData.setRebuildMillis(reader.varint());
+        }
+        reader.beginFields();
+        redisData.setData(schema.read(reader, version));
+        return redisData;
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    private static LocalDateTime fromMillis(long millis) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000L), (int) Math.floorMod(millis, 1000L) * 1000000, ZoneOffset.UTC);
+    }
+
+    /**
+     * 按顺序写字段，同时记录哪些字段为null，最后把位图放在字段前面
+     */
+    public static class Writer {
+        private byte[] buf = new byte[64];
+        private int pos;
+        private int fieldsStart;
+        private long presence;
+        private int field;
+
+        void raw(byte b) {
+            ensure(1);
+            buf[pos++] = b;
+        }
+
+        void varint(long v) {
+            long zigzag = (v << 1) ^ (v >> 63);
+            ensure(10);
+            while ((zigzag & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            buf[pos++] = (byte) zigzag;
+        }
+
+        void beginFields() {
+            fieldsStart = pos;
+            presence = 0;
+            field = 0;
+        }
+
+        byte[] endFields() {
+            //把位图插到字段前面
+            byte[] body = Arrays.copyOfRange(buf, fieldsStart, pos);
+            pos = fieldsStart;
+            varint(presence);
+            ensure(body.length);
+            System.arraycopy(body, 0, buf, pos, body.length);
+            pos += body.length;
+            return Arrays.copyOf(buf, pos);
+        }
+
+        private boolean present(Object value) {
+            if (field >= 64) {
+                throw new IllegalStateException("单个schema最多64个字段");
+            }
+            boolean present = value != null;
+            if (present) {
+                presence |= 1L << field;
+            }
+            field++;
+            return present;
+        }
+
+        public void writeLong(Long value) {
+            if (present(value)) {
+                varint(value);
+            }
+        }
+
+        public void writeInt(Integer value) {
+            if (present(value)) {
+                varint(value);
+            }
+        }
+
+        public void writeDouble(Double value) {
+            if (present(value)) {
+                long bits = Double.doubleToLongBits(value);
+                ensure(8);
+                for (int i = 0; i < 8; i++) {
+                    buf[pos++] = (byte) (bits >>> (i << 3));
+                }
+            }
+        }
+
+        public void writeString(String value) {
+            if (present(value)) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                varint(bytes.length);
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, buf, pos, bytes.length);
+                pos += bytes.length;
+            }
+        }
+
+        public void writeTime(LocalDateTime value) {
+            if (present(value)) {
+                varint(toMillis(value));
+            }
+        }
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, pos + n));
+            }
+        }
+    }
+
+    /**
+     * 按写入的顺序读字段，位图里没有的字段返回null
+     */
+    public static class Reader {
+        private final byte[] buf;
+        private int pos;
+        private long presence;
+        private int field;
+
+        Reader(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        int raw() {
+            return buf[pos++] & 0xFF;
+        }
+
+        long varint() {
+            long zigzag = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buf[pos++];
+                zigzag |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        void beginFields() {
+            presence = varint();
+            field = 0;
+        }
+
+        private boolean present() {
+            return (presence & (1L << field++)) != 0;
+        }
+
+        public Long readLong() {
+            return present() ? varint() : null;
+        }
+
+        public Integer readInt() {
+            return present() ? (int) varint() : null;
+        }
+
+        public Double readDouble() {
+            if (!present()) {
+                return null;
+            }
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits |= (long) (buf[pos++] & 0xFF) << (i << 3);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        public String readString() {
+            if (!present()) {
+                return null;
+            }
+            int length = (int) varint();
+            String value = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return value;
+        }
+
+        public LocalDateTime readTime() {
+            return present() ? fromMillis(varint()) : null;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.collection.CollUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.CACHE_BLOOM_CHANNEL;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOOM_PAGE_SIZE;
+
+/**
+ * 防缓存穿透的布隆过滤器，按key前缀注册
+ * 启动后从数据库分页把所有合法id装进本地过滤器，新增数据时通过redis频道通知所有节点
+ * 判断为不存在的id直接返回空，不再查redis和数据库，也不会往redis里写空值
+ * 过滤器没加载完之前一律放行，保证不会误杀
+ */
+@Slf4j
+@Component
+public class CacheBloomFilter implements MessageListener {
+
+    @Value("${hmdp.cache.bloom.enabled:true}")
+    private boolean enabled;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    private final Map<String, Holder> holders = new ConcurrentHashMap<>();
+
+    private static class Holder {
+        private final long expectedInsertions;
+        private final double fpp;
+        /**
+         * 传入上一页最大的id，返回下一页的id（升序），返回空表示读完了
+         */
+        private final Function<Long, List<Long>> idPager;
+        /**
+         * 正在使用的过滤器，为null表示还没加载完
+         */
+        private volatile BloomFilter filter;
+        /**
+         * 正在重建的过滤器，重建期间新增的id两边都要放
+         */
+        private volatile BloomFilter building;
+
+        private Holder(long expectedInsertions, double fpp, Function<Long, List<Long>> idPager) {
+            this.expectedInsertions = expectedInsertions;
+            this.fpp = fpp;
+            this.idPager = idPager;
+        }
+
+        private void put(String id) {
+            //先读building再读filter，和reload里的赋值顺序配合，保证切换时不丢数据
+            BloomFilter b = building;
+            BloomFilter f = filter;
+            if (f != null) {
+                f.put(id);
+            }
+            if (b != null) {
+                b.put(id);
+            }
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(CACHE_BLOOM_CHANNEL));
+    }
+
+    /**
+     * 为某个key前缀注册布隆过滤器
+     * @param keyPrefix key前缀
+     * @param expectedInsertions 预计id数量
+     * @param fpp 期望误判率
+     * @param idPager 分页读取合法id的方法
+     */
+    public void register(String keyPrefix, long expectedInsertions, double fpp, Function<Long, List<Long>> idPager) {
+        holders.put(keyPrefix, new Holder(expectedInsertions, fpp, idPager));
+    }
+
+    /**
+     * 判断id是否可能存在，没注册或者还没加载完都当作可能存在
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        if (!enabled) {
+            return true;
+        }
+        Holder holder = holders.get(keyPrefix);
+        if (holder == null) {
+            return true;
+        }
+        BloomFilter filter = holder.filter;
+        return filter == null || filter.mightContain(String.valueOf(id));
+    }
+
+    /**
+     * 新增数据后调用，通知所有节点把id加进过滤器
+     */
+    public void add(String keyPrefix, Object id) {
+        Holder holder = holders.get(keyPrefix);
+        if (holder == null) {
+            return;
+        }
+        holder.put(String.valueOf(id));
+        stringRedisTemplate.convertAndSend(CACHE_BLOOM_CHANNEL, keyPrefix + id);
+    }
+
+    /**
+     * 启动时加载，之后定时重建，兜底丢失的通知消息和数据量的增长
+     */
+    @Scheduled(initialDelay = 0, fixedDelayString = "${hmdp.cache.bloom.reload-interval:3600000}")
+    public void reloadAll() {
+        if (!enabled) {
+            return;
+        }
+        holders.forEach(this::reload);
+    }
+
+    private void reload(String keyPrefix, Holder holder) {
+        long begin = System.currentTimeMillis();
+        BloomFilter b = BloomFilter.create(holder.expectedInsertions, holder.fpp);
+        holder.building = b;
+        long count = 0;
+        try {
+            Long lastId = 0L;
+            while (true) {
+                List<Long> ids = holder.idPager.apply(lastId);
+                if (CollUtil.isEmpty(ids)) {
+                    break;
+                }
+                for (Long id : ids) {
+                    b.put(String.valueOf(id));
+                }
+                count += ids.size();
+                lastId = ids.get(ids.size() - 1);
+                if (ids.size() < CACHE_BLOOM_PAGE_SIZE) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            //加载失败继续用旧的过滤器，第一次加载失败就一直放行
+            holder.building = null;
+            log.error("布隆过滤器加载失败，前缀：{}", keyPrefix, e);
+            return;
+        }
+        holder.filter = b;
+        holder.building = null;
+        log.info("布隆过滤器加载完成，前缀：{}，id数量：{}，占用：{}KB，耗时：{}ms",
+                keyPrefix, count, b.sizeInBytes() / 1024, System.currentTimeMillis() - begin);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        holders.forEach((prefix, holder) -> {
+            if (key.startsWith(prefix)) {
+                holder.put(key.substring(prefix.length()));
+            }
+        });
+    }
+}
@@ -0,0 +1,34 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码
+ * 写入时由配置选定一种编码，读取时按数据本身判断该用哪种解码，方便新旧格式共存
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码器的名字，对应配置 hmdp.cache.codec
+     */
+    String name();
+
+    /**
+     * 是否支持编码这个类型，不支持的由json兜底
+     */
+    boolean supports(Class<?> type);
+
+    /**
+     * 编码
+     * @param redisData data为要缓存的对象，expireTime为逻辑过期时间，普通缓存为null
+     */
+    byte[] encode(RedisData redisData);
+
+    /**
+     * 这段数据是不是这种格式
+     */
+    boolean canDecode(byte[] bytes);
+
+    /**
+     * 解码，data为目标类型的对象，expireTime为逻辑过期时间，普通缓存为null，rebuildMillis为上次重建耗时
+     */
+    RedisData decode(byte[] bytes, Class<?> type);
+}
@@ -0,0 +1,107 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_BATCH_SIZE;
+
+/**
+ * 跨节点的本地缓存失效通知
+ * 写操作先把本节点的L1删掉，再把key攒起来，定时合并成一条消息发到redis频道
+ * 所有节点（包括自己）收到消息后删除各自的L1，短时间内同一个key写多次只会发一次
+ */
+@Slf4j
+@Component
+public class CacheInvalidationBus implements MessageListener {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Resource
+    private NearCache nearCache;
+
+    /**
+     * 等待发送的key，用set天然去重
+     */
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 通知所有节点删除本地缓存
+     * @param keyPrefix key前缀
+     * @param id 数据id
+     */
+    public void publish(String keyPrefix, Object id) {
+        String key = keyPrefix + id;
+        //本节点立即失效，不用等消息绕一圈回来
+        nearCache.invalidate(key);
+        pending.add(key);
+    }
+
+    /**
+     * 定时把攒下来的key批量发出去
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.invalidate.flush-interval:50}")
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<String> batch = new ArrayList<>(CACHE_INVALIDATE_BATCH_SIZE);
+        Iterator<String> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            batch.add(iterator.next());
+            iterator.remove();
+            if (batch.size() == CACHE_INVALIDATE_BATCH_SIZE) {
+                send(batch);
+                batch = new ArrayList<>(CACHE_INVALIDATE_BATCH_SIZE);
+            }
+        }
+        if (!batch.isEmpty()) {
+            send(batch);
+        }
+    }
+
+    private void send(List<String> keys) {
+        try {
+            stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, String.join("\n", keys));
+        } catch (Exception e) {
+            //发送失败放回去下次再发，最坏情况由L1自身的TTL兜底
+            pending.addAll(keys);
+            log.error("缓存失效消息发送失败，数量：{}", keys.size(), e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        for (String key : body.split("\n")) {
+            if (StrUtil.isNotBlank(key)) {
+                nearCache.invalidate(key);
+            }
+        }
+    }
+}
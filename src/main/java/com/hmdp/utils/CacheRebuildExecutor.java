@@ -0,0 +1,132 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓存重建线程池
+ * 队列有界，同一个key在排队或执行中时不会重复提交，队列满了直接拒绝，调用方继续返回旧数据
+ * 重建里抛出的异常会记日志和计数，不会像submit那样被吞掉
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+
+    @Value("${hmdp.cache.rebuild.threads:10}")
+    private int threads;
+
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int queueCapacity;
+
+    private ThreadPoolExecutor executor;
+
+    /**
+     * 正在排队或执行的key
+     */
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder totalMillis = new LongAdder();
+    private final AtomicLong maxMillis = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new NamedThreadFactory("cache-rebuild-", false),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * 这个key是否已经在重建了，是的话调用方连锁都不用去抢
+     */
+    public boolean isRebuilding(String key) {
+        return inFlight.contains(key);
+    }
+
+    /**
+     * 提交重建任务
+     * @param key 缓存key，用来去重
+     * @param task 重建逻辑
+     * @return false表示重复提交或者队列已满，任务没有执行
+     */
+    public boolean submit(String key, Runnable task) {
+        if (!inFlight.add(key)) {
+            deduplicated.increment();
+            return false;
+        }
+        try {
+            executor.execute(() -> run(key, task));
+            submitted.increment();
+            return true;
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key);
+            rejected.increment();
+            log.warn("缓存重建队列已满，继续返回旧数据，key：{}", key);
+            return false;
+        }
+    }
+
+    private void run(String key, Runnable task) {
+        long begin = System.currentTimeMillis();
+        try {
+            task.run();
+            succeeded.increment();
+        } catch (Throwable e) {
+            failed.increment();
+            log.error("缓存重建失败，key：{}", key, e);
+        } finally {
+            inFlight.remove(key);
+            long cost = System.currentTimeMillis() - begin;
+            totalMillis.add(cost);
+            maxMillis.accumulateAndGet(cost, Math::max);
+        }
+    }
+
+    /**
+     * 队列深度、重建耗时、失败次数等指标
+     */
+    public Map<String, Object> metrics() {
+        long finished = succeeded.sum() + failed.sum();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("queueDepth", executor.getQueue().size());
+        metrics.put("activeThreads", executor.getActiveCount());
+        metrics.put("inFlight", inFlight.size());
+        metrics.put("submitted", submitted.sum());
+        metrics.put("deduplicated", deduplicated.sum());
+        metrics.put("rejected", rejected.sum());
+        metrics.put("succeeded", succeeded.sum());
+        metrics.put("failed", failed.sum());
+        metrics.put("avgMillis", finished == 0 ? 0 : totalMillis.sum() / finished);
+        metrics.put("maxMillis", maxMillis.get());
+        return metrics;
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        //不再接新任务，等已经提交的跑完，超时就强制中断
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("缓存重建线程池关闭超时，丢弃剩余任务：{}", executor.shutdownNow().size());
+        }
+    }
+}
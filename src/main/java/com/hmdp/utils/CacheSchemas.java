@@ -0,0 +1,196 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.entity.Voucher;
+
+/**
+ * 二进制缓存格式里各个类型的字段顺序
+ * 注意：已经上线的字段顺序不能改，新字段只能加在最后
+ */
+public class CacheSchemas {
+
+    public static class ShopSchema implements BinaryCacheCodec.Schema<Shop> {
+        @Override
+        public int id() {
+            return 1;
+        }
+
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public Class<Shop> type() {
+            return Shop.class;
+        }
+
+        @Override
+        public void write(Shop shop, BinaryCacheCodec.Writer writer) {
+            writer.writeLong(shop.getId());
+            writer.writeString(shop.getName());
+            writer.writeLong(shop.getTypeId());
+            writer.writeString(shop.getImages());
+            writer.writeString(shop.getArea());
+            writer.writeString(shop.getAddress());
+            writer.writeDouble(shop.getX());
+            writer.writeDouble(shop.getY());
+            writer.writeLong(shop.getAvgPrice());
+            writer.writeInt(shop.getSold());
+            writer.writeInt(shop.getComments());
+            writer.writeInt(shop.getScore());
+            writer.writeString(shop.getOpenHours());
+            writer.writeTime(shop.getCreateTime());
+            writer.writeTime(shop.getUpdateTime());
+            writer.writeDouble(shop.getDistance());
+        }
+
+        @Override
+        public Shop read(BinaryCacheCodec.Reader reader, int version) {
+            return new Shop()
+                    .setId(reader.readLong())
+                    .setName(reader.readString())
+                    .setTypeId(reader.readLong())
+                    .setImages(reader.readString())
+                    .setArea(reader.readString())
+                    .setAddress(reader.readString())
+                    .setX(reader.readDouble())
+                    .setY(reader.readDouble())
+                    .setAvgPrice(reader.readLong())
+                    .setSold(reader.readInt())
+                    .setComments(reader.readInt())
+                    .setScore(reader.readInt())
+                    .setOpenHours(reader.readString())
+                    .setCreateTime(reader.readTime())
+                    .setUpdateTime(reader.readTime())
+                    .setDistance(reader.readDouble());
+        }
+    }
+
+    public static class ShopTypeSchema implements BinaryCacheCodec.Schema<ShopType> {
+        @Override
+        public int id() {
+            return 2;
+        }
+
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public Class<ShopType> type() {
+            return ShopType.class;
+        }
+
+        @Override
+        public void write(ShopType shopType, BinaryCacheCodec.Writer writer) {
+            writer.writeLong(shopType.getId());
+            writer.writeString(shopType.getName());
+            writer.writeString(shopType.getIcon());
+            writer.writeInt(shopType.getSort());
+            writer.writeTime(shopType.getCreateTime());
+            writer.writeTime(shopType.getUpdateTime());
+        }
+
+        @Override
+        public ShopType read(BinaryCacheCodec.Reader reader, int version) {
+            return new ShopType()
+                    .setId(reader.readLong())
+                    .setName(reader.readString())
+                    .setIcon(reader.readString())
+                    .setSort(reader.readInt())
+                    .setCreateTime(reader.readTime())
+                    .setUpdateTime(reader.readTime());
+        }
+    }
+
+    public static class VoucherSchema implements BinaryCacheCodec.Schema<Voucher> {
+        @Override
+        public int id() {
+            return 3;
+        }
+
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public Class<Voucher> type() {
+            return Voucher.class;
+        }
+
+        @Override
+        public void write(Voucher voucher, BinaryCacheCodec.Writer writer) {
+            writer.writeLong(voucher.getId());
+            writer.writeLong(voucher.getShopId());
+            writer.writeString(voucher.getTitle());
+            writer.writeString(voucher.getSubTitle());
+            writer.writeString(voucher.getRules());
+            writer.writeLong(voucher.getPayValue());
+            writer.writeLong(voucher.getActualValue());
+            writer.writeInt(voucher.getType());
+            writer.writeInt(voucher.getStatus());
+            writer.writeInt(voucher.getStock());
+            writer.writeTime(voucher.getBeginTime());
+            writer.writeTime(voucher.getEndTime());
+            writer.writeTime(voucher.getCreateTime());
+            writer.writeTime(voucher.getUpdateTime());
+        }
+
+        @Override
+        public Voucher read(BinaryCacheCodec.Reader reader, int version) {
+            return new Voucher()
+                    .setId(reader.readLong())
+                    .setShopId(reader.readLong())
+                    .setTitle(reader.readString())
+                    .setSubTitle(reader.readString())
+                    .setRules(reader.readString())
+                    .setPayValue(reader.readLong())
+                    .setActualValue(reader.readLong())
+                    .setType(reader.readInt())
+                    .setStatus(reader.readInt())
+                    .setStock(reader.readInt())
+                    .setBeginTime(reader.readTime())
+                    .setEndTime(reader.readTime())
+                    .setCreateTime(reader.readTime())
+                    .setUpdateTime(reader.readTime());
+        }
+    }
+
+    public static class UserDTOSchema implements BinaryCacheCodec.Schema<UserDTO> {
+        @Override
+        public int id() {
+            return 4;
+        }
+
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public Class<UserDTO> type() {
+            return UserDTO.class;
+        }
+
+        @Override
+        public void write(UserDTO user, BinaryCacheCodec.Writer writer) {
+            writer.writeLong(user.getId());
+            writer.writeString(user.getNickName());
+            writer.writeString(user.getIcon());
+        }
+
+        @Override
+        public UserDTO read(BinaryCacheCodec.Reader reader, int version) {
+            UserDTO user = new UserDTO();
+            user.setId(reader.readLong());
+            user.setNickName(reader.readString());
+            user.setIcon(reader.readString());
+            return user;
+        }
+    }
+}
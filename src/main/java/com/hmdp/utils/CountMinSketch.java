@@ -0,0 +1,69 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 线程安全的count-min sketch，估计每个key出现的次数，只会多估不会少估
+ * depth行、每行width个计数器，和布隆过滤器一样用murmur3的128位哈希做双重哈希
+ */
+public class CountMinSketch {
+
+    private final AtomicLongArray counters;
+    private final int depth;
+    private final int mask;
+
+    /**
+     * @param depth 行数，越多多估的概率越小
+     * @param width 每行的计数器个数，向上取整到2的幂
+     */
+    public CountMinSketch(int depth, int width) {
+        int w = Integer.highestOneBit(Math.max(width - 1, 1)) << 1;
+        this.counters = new AtomicLongArray(depth * w);
+        this.depth = depth;
+        this.mask = w - 1;
+    }
+
+    public void add(String key) {
+        long[] hash = MurmurHash.hash128(key);
+        long combined = hash[0];
+        for (int i = 0; i < depth; i++) {
+            counters.incrementAndGet(index(i, combined));
+            combined += hash[1];
+        }
+    }
+
+    public long estimate(String key) {
+        long[] hash = MurmurHash.hash128(key);
+        long combined = hash[0];
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            min = Math.min(min, counters.get(index(i, combined)));
+            combined += hash[1];
+        }
+        return min;
+    }
+
+    /**
+     * 逐个计数器减去另一个同样大小的sketch，用于滑动窗口移出最老的一格
+     */
+    public void subtract(CountMinSketch other) {
+        for (int i = 0; i < counters.length(); i++) {
+            long value = other.counters.get(i);
+            if (value != 0) {
+                counters.addAndGet(i, -value);
+            }
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0L);
+        }
+    }
+
+    private int index(int row, long hash) {
+        return row * (mask + 1) + (int) (hash & mask);
+    }
+}
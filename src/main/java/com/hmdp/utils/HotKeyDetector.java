@@ -0,0 +1,141 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.HotKey;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+/**
+ * 热点key探测
+ * 读请求按采样率抽样计数，计数用滑动窗口的count-min sketch：窗口分成若干格，每格一个sketch，
+ * 另外维护一个总和sketch，窗口滑动时减掉最老的一格，估计次数只查总和，开销和格数无关
+ * 估计次数超过阈值的key进入top-K，RedisClient把它们钉在本地缓存里；跌到阈值一半以下才移出，避免来回抖动
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 4096;
+
+    @Value("${hmdp.cache.hot-key.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 每多少次读抽一次样
+     */
+    @Value("${hmdp.cache.hot-key.sample-rate:10}")
+    private int sampleRate;
+
+    /**
+     * 窗口格数，每格的时长，窗口长度 = 格数 * 每格时长
+     */
+    @Value("${hmdp.cache.hot-key.slots:10}")
+    private int slotCount;
+
+    /**
+     * 一个窗口内读多少次算热点
+     */
+    @Value("${hmdp.cache.hot-key.threshold:1000}")
+    private long threshold;
+
+    @Value("${hmdp.cache.hot-key.top-k:50}")
+    private int topK;
+
+    private CountMinSketch[] slots;
+    private CountMinSketch total;
+    private volatile int current;
+
+    /**
+     * 当前的热点key和估计次数
+     */
+    private final Map<String, Long> hotKeys = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        slots = new CountMinSketch[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH);
+        }
+        total = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH);
+    }
+
+    /**
+     * 记录一次读，按采样率抽样
+     */
+    public void record(String key) {
+        if (!enabled || ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        slots[current].add(key);
+        total.add(key);
+        long count = total.estimate(key) * sampleRate;
+        if (count >= threshold) {
+            promote(key, count);
+        }
+    }
+
+    public boolean isHot(String key) {
+        return enabled && hotKeys.containsKey(key);
+    }
+
+    /**
+     * 按估计次数从高到低排列的热点key
+     */
+    public List<HotKey> hotKeys() {
+        return hotKeys.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .map(e -> new HotKey(e.getKey(), e.getValue()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 窗口向前滑一格：清掉最老的一格，重新估计现有的热点key
+     */
+    @Scheduled(fixedRateString = "${hmdp.cache.hot-key.slot-millis:1000}")
+    public void slide() {
+        if (!enabled) {
+            return;
+        }
+        int next = (current + 1) % slotCount;
+        total.subtract(slots[next]);
+        slots[next].clear();
+        current = next;
+        hotKeys.replaceAll((key, old) -> total.estimate(key) * sampleRate);
+        hotKeys.entrySet().removeIf(e -> {
+            boolean cooled = e.getValue() < threshold / 2;
+            if (cooled) {
+                log.debug("热点key降温：{}", e.getKey());
+            }
+            return cooled;
+        });
+    }
+
+    private void promote(String key, long count) {
+        if (hotKeys.replace(key, count) != null) {
+            return;
+        }
+        //满了就和当前最冷的比，比它热才替换
+        if (hotKeys.size() >= topK) {
+            Map.Entry<String, Long> coldest = hotKeys.entrySet().stream()
+                    .min(Comparator.comparingLong(Map.Entry::getValue))
+                    .orElse(null);
+            if (coldest == null || coldest.getValue() >= count) {
+                return;
+            }
+            hotKeys.remove(coldest.getKey());
+        }
+        if (hotKeys.putIfAbsent(key, count) == null) {
+            log.info("发现热点key：{}，窗口内估计读取{}次", key, count);
+        }
+    }
+}
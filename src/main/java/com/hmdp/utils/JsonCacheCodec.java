@@ -0,0 +1,53 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+/**
+ * 原来的hutool json格式，兼容已经写进redis的老数据
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    public static final String NAME = "json";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public boolean supports(Class<?> type) {
+        return true;
+    }
+
+    @Override
+    public byte[] encode(RedisData redisData) {
+        //普通缓存只存数据本身，逻辑过期的连同外层一起存
+        Object target = redisData.getExpireTime() == null ? redisData.getData() : redisData;
+        return JSONUtil.toJsonStr(target).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean canDecode(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] != BinaryCacheCodec.MAGIC;
+    }
+
+    @Override
+    public RedisData decode(byte[] bytes, Class<?> type) {
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        RedisData redisData = new RedisData();
+        //逻辑过期的数据外面包了一层RedisData，data为null时json里没有这个字段，只按expireTime判断
+        if (json.containsKey("expireTime")) {
+            redisData.setExpireTime(json.get("expireTime", LocalDateTime.class));
+            redisData.setRebuildMillis(json.getLong("rebuildMillis"));
+            JSONObject data = json.getJSONObject("data");
+            redisData.setData(data == null ? null : JSONUtil.toBean(data, type));
+        } else {
+            redisData.setData(JSONUtil.toBean(json, type));
+        }
+        return redisData;
+    }
+}
@@ -0,0 +1,142 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.hmdp.dto.LocalCacheStat;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 进程内的一级缓存（L1），挡在redis（L2）前面
+ * 按key前缀分别注册，每个前缀单独配置容量和过期时间，淘汰策略用caffeine自带的W-TinyLFU
+ * 没有注册过的前缀直接跳过L1，行为和原来一样
+ * 另外有一个不分前缀的热点区，存放HotKeyDetector探测出来的热点key，TTL很短，没注册L1的前缀也能用
+ * 缓存的对象会原样交给每个读到它的请求，调用方要存不可变的值或者自己在读的时候复制，RedisClient存的是编码后的字节
+ */
+@Slf4j
+@Component
+public class NearCache {
+
+    /**
+     * 总开关，关掉之后所有前缀都不走L1
+     */
+    @Value("${hmdp.cache.local.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.cache.hot-key.top-k:50}")
+    private int pinnedSize;
+
+    /**
+     * 热点key在本地钉住多久（毫秒），过期后如果还热会再被钉住
+     */
+    @Value("${hmdp.cache.hot-key.pin-ttl:2000}")
+    private long pinTtlMillis;
+
+    private final Map<String, Cache<String, Object>> caches = new ConcurrentHashMap<>();
+
+    private Cache<String, Object> pinned;
+
+    @PostConstruct
+    public void init() {
+        pinned = Caffeine.newBuilder()
+                .maximumSize(pinnedSize)
+                .expireAfterWrite(pinTtlMillis, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * 为某个key前缀开启L1
+     * @param keyPrefix key前缀，例如 cache:shop:
+     * @param maximumSize 最多缓存多少个key
+     * @param ttl 写入后多久过期
+     * @param unit 时间单位
+     */
+    public void register(String keyPrefix, long maximumSize, long ttl, TimeUnit unit) {
+        Cache<String, Object> cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl, unit)
+                .recordStats()
+                .build();
+        caches.put(keyPrefix, cache);
+        log.debug("本地缓存已注册，前缀：{}，容量：{}，TTL：{} {}", keyPrefix, maximumSize, ttl, unit);
+    }
+
+    /**
+     * 这个前缀有没有开启L1
+     */
+    public boolean isEnabled(String keyPrefix) {
+        return cacheOf(keyPrefix) != null;
+    }
+
+    public <R> R get(String keyPrefix, String key, Class<R> type) {
+        Cache<String, Object> cache = cacheOf(keyPrefix);
+        Object value = cache == null ? null : cache.getIfPresent(key);
+        if (value == null) {
+            value = pinned.getIfPresent(key);
+        }
+        //类型对不上就当作没命中
+        return type.isInstance(value) ? type.cast(value) : null;
+    }
+
+    public void put(String keyPrefix, String key, Object value) {
+        Cache<String, Object> cache = cacheOf(keyPrefix);
+        //空值不进L1，空值的穿透保护交给redis里的空字符串
+        if (cache == null || value == null) {
+            return;
+        }
+        cache.put(key, value);
+    }
+
+    /**
+     * 把热点key钉在本地，不受前缀是否注册和总开关的影响
+     */
+    public void pin(String key, Object value) {
+        if (value != null) {
+            pinned.put(key, value);
+        }
+    }
+
+    /**
+     * 根据完整的key删除本地缓存，会自己找到所属的前缀
+     * @param key 完整的key
+     */
+    public void invalidate(String key) {
+        caches.forEach((prefix, cache) -> {
+            if (key.startsWith(prefix)) {
+                cache.invalidate(key);
+            }
+        });
+        pinned.invalidate(key);
+    }
+
+    /**
+     * 每个前缀的命中/未命中统计，热点区单独一项
+     */
+    public List<LocalCacheStat> stats() {
+        List<LocalCacheStat> stats = new ArrayList<>();
+        caches.forEach((prefix, cache) -> stats.add(toStat(prefix, cache)));
+        stats.add(toStat("pinned", pinned));
+        return stats;
+    }
+
+    private static LocalCacheStat toStat(String prefix, Cache<String, Object> cache) {
+        CacheStats stats = cache.stats();
+        return new LocalCacheStat(prefix, cache.estimatedSize(), stats.hitCount(), stats.missCount(),
+                stats.hitRate(), stats.evictionCount());
+    }
+
+    private Cache<String, Object> cacheOf(String keyPrefix) {
+        return enabled ? caches.get(keyPrefix) : null;
+    }
+}
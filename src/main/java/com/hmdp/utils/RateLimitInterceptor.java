@@ -0,0 +1,75 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.config.RateLimitProperties;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Map;
+
+/**
+ * 限流拦截器，按配置的规则依次检查，任何一条不通过就返回429
+ * 放在登录拦截器之后，user维度可以直接从UserHolder取到用户
+ */
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    private final RateLimiter rateLimiter;
+    private final RateLimitProperties properties;
+    private final AntPathMatcher pathMatcher = new AntPathMatcher();
+
+    public RateLimitInterceptor(RateLimiter rateLimiter, RateLimitProperties properties) {
+        this.rateLimiter = rateLimiter;
+        this.properties = properties;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (!properties.isEnabled()) {
+            return true;
+        }
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        for (RateLimitProperties.Rule rule : properties.getRules()) {
+            if (!pathMatcher.match(rule.getPath(), path)) {
+                continue;
+            }
+            String key = resolveKey(rule.getDimension(), request);
+            if (key == null) {
+                continue;
+            }
+            long wait = rateLimiter.tryAcquire(rule.getName(), key, rule.getRate(), rule.getCapacity());
+            if (wait > 0) {
+                response.setStatus(429);
+                response.setHeader("Retry-After", String.valueOf((wait + 999) / 1000));
+                response.setContentType("application/json;charset=UTF-8");
+                response.getWriter().write(JSONUtil.toJsonStr(Result.fail("请求太频繁，请稍后再试")));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 取不到对应维度的值时这条规则不生效
+     */
+    @SuppressWarnings("unchecked")
+    private String resolveKey(String dimension, HttpServletRequest request) {
+        switch (dimension) {
+            case "user":
+                UserDTO user = UserHolder.getUser();
+                return user == null ? null : user.getId().toString();
+            case "ip":
+                // 只认直连地址，X-Forwarded-For可以随便伪造；部署在代理后面时由容器的RemoteIpValve还原真实地址
+                return request.getRemoteAddr();
+            case "voucher":
+                Map<String, String> variables = (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+                return variables == null ? null : variables.get("id");
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.dto.RateLimitStat;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.RATE_LIMIT_KEY;
+
+/**
+ * 分布式令牌桶限流
+ * 真正的配额在redis里，所有节点共用一个桶；每次取令牌前先过两道本地检查，大部分拒绝不用访问redis：
+ * 1.redis刚拒绝过的key，在它告诉我们的等待时间内直接拒绝
+ * 2.每个key在本地也有一个同样速率的桶，单个节点的请求量不可能合法地超过全局速率，本地桶空了就直接拒绝
+ * redis不可用时放行，只靠本地桶兜底，限流不能变成整个接口的单点
+ */
+@Slf4j
+@Component
+public class RateLimiter {
+
+    private static final DefaultRedisScript<List> RATE_LIMIT_SCRIPT;
+
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("lua/rate_limit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 本地令牌桶，一段时间没有请求的key自动清掉
+     */
+    private final Cache<String, LocalBucket> localBuckets = Caffeine.newBuilder()
+            .maximumSize(100000)
+            .expireAfterAccess(1, TimeUnit.MINUTES)
+            .build();
+
+    /**
+     * redis拒绝之后，key在这个时间点之前都不用再去问redis
+     */
+    private final Cache<String, Long> blockedUntil = Caffeine.newBuilder()
+            .maximumSize(100000)
+            .expireAfterWrite(10, TimeUnit.SECONDS)
+            .build();
+
+    private final Map<String, Counters> counters = new ConcurrentHashMap<>();
+
+    /**
+     * 取一个令牌
+     * @param rule 规则名
+     * @param key 限流的对象，比如用户id、ip
+     * @param rate 每秒补充的令牌数（全局）
+     * @param capacity 桶容量
+     * @return 0表示放行，大于0表示被拒绝，是建议客户端等待的毫秒数
+     */
+    public long tryAcquire(String rule, String key, double rate, long capacity) {
+        Counters stat = counters.computeIfAbsent(rule, r -> new Counters());
+        String bucketKey = RATE_LIMIT_KEY + rule + ":" + key;
+        long now = System.currentTimeMillis();
+        // 1.redis已经拒绝过，还没到可以重试的时间
+        Long until = blockedUntil.getIfPresent(bucketKey);
+        if (until != null && until > now) {
+            stat.rejectedLocal.increment();
+            return until - now;
+        }
+        // 2.本地桶
+        long wait = localBuckets.get(bucketKey, k -> new LocalBucket(capacity)).tryAcquire(rate, capacity, now);
+        if (wait > 0) {
+            stat.rejectedLocal.increment();
+            return wait;
+        }
+        // 3.redis里的全局桶
+        try {
+            List<?> result = stringRedisTemplate.execute(RATE_LIMIT_SCRIPT, Collections.singletonList(bucketKey),
+                    String.valueOf(rate), String.valueOf(capacity), String.valueOf(now), "1");
+            if (result == null || result.size() < 2 || ((Long) result.get(0)) == 1) {
+                stat.allowed.increment();
+                return 0;
+            }
+            wait = Math.max(1, (Long) result.get(1));
+            blockedUntil.put(bucketKey, now + wait);
+            stat.rejectedRemote.increment();
+            return wait;
+        } catch (Exception e) {
+            log.warn("限流访问redis失败，放行：{}", bucketKey, e);
+            stat.failOpen.increment();
+            return 0;
+        }
+    }
+
+    public List<RateLimitStat> stats() {
+        return counters.entrySet().stream()
+                .map(e -> new RateLimitStat(e.getKey(), e.getValue().allowed.sum(), e.getValue().rejectedLocal.sum(),
+                        e.getValue().rejectedRemote.sum(), e.getValue().failOpen.sum()))
+                .collect(Collectors.toList());
+    }
+
+    private static class Counters {
+        private final LongAdder allowed = new LongAdder();
+        private final LongAdder rejectedLocal = new LongAdder();
+        private final LongAdder rejectedRemote = new LongAdder();
+        private final LongAdder failOpen = new LongAdder();
+    }
+
+    /**
+     * 本地令牌桶，算法和lua脚本一样
+     */
+    private static class LocalBucket {
+        private double tokens;
+        private long ts;
+
+        LocalBucket(long capacity) {
+            this.tokens = capacity;
+            this.ts = System.currentTimeMillis();
+        }
+
+        synchronized long tryAcquire(double rate, long capacity, long now) {
+            tokens = Math.min(capacity, tokens + Math.max(0, now - ts) * rate / 1000);
+            ts = Math.max(ts, now);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) * 1000 / rate);
+        }
+    }
+}
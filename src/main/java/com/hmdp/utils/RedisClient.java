@@ -1,19 +1,28 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.dto.Result;
-import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
@@ -26,15 +35,59 @@ public class RedisClient {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private NearCache nearCache;
+
+    @Resource
+    private CacheInvalidationBus invalidationBus;
+
+    @Resource
+    private CacheBloomFilter bloomFilter;
+
+    @Resource
+    private CacheRebuildExecutor rebuildExecutor;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private RedisLock redisLock;
+
     /**
-     * 将数据转成json存入redis中，并设置TTL
+     * 等待别的节点重建缓存的最长时间（毫秒），超过就直接查库
+     */
+    private static final long MUTEX_WAIT_MILLIS = 300L;
+
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    /**
+     * 写缓存用的编码，binary或json；读缓存时按数据本身的格式自动识别
+     */
+    @Value("${hmdp.cache.codec:json}")
+    private String codecName;
+
+    private final CacheCodec jsonCodec = new JsonCacheCodec();
+    private final CacheCodec binaryCodec = new BinaryCacheCodec();
+    private final List<CacheCodec> codecs = Arrays.asList(binaryCodec, jsonCodec);
+    private CacheCodec writeCodec;
+
+    @PostConstruct
+    public void init() {
+        writeCodec = codecs.stream().filter(codec -> codec.name().equals(codecName)).findFirst()
+                .orElseThrow(() -> new IllegalStateException("未知的缓存编码：" + codecName));
+    }
+
+    /**
+     * 将数据编码后存入redis中，并设置TTL
      * @param key
      * @param value
      * @param time
      * @param unit
      */
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        setRaw(key, encode(redisData), time, unit);
     }
 
     /**
@@ -46,23 +99,94 @@ public class RedisClient {
      */
 
     public void setWithLogicalExpire(String key,Object value,Long time,TimeUnit unit){
+        setWithLogicalExpire(key, value, time, unit, null);
+    }
+
+    private void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, Long rebuildMillis) {
         RedisData redisData = new RedisData();
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
         redisData.setData(value);
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(redisData));
+        redisData.setRebuildMillis(rebuildMillis);
+        setRaw(key, encode(redisData), null, null);
+    }
+
+    /**
+     * 批量逻辑过期写入，一次pipeline写完，用于启动预热
+     * @param keyPrefix key前缀
+     * @param values id和数据
+     * @param time 逻辑过期时间
+     * @param unit 时间单位
+     */
+    public <ID> void setManyWithLogicalExpire(String keyPrefix, Map<ID, ?> values, Long time, TimeUnit unit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(unit.toSeconds(time));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            values.forEach((id, value) -> {
+                RedisData redisData = new RedisData();
+                redisData.setExpireTime(expireTime);
+                redisData.setData(value);
+                connection.set(rawKey(keyPrefix + id), encode(redisData), Expiration.persistent(), RedisStringCommands.SetOption.upsert());
+            });
+            return null;
+        });
+    }
+
+    /**
+     * 批量写入带TTL的缓存，一次pipeline写完，用于启动预热
+     * @param keyPrefix key前缀
+     * @param values id和数据
+     * @param time 过期时间
+     * @param unit 时间单位
+     */
+    public <ID> void setMany(String keyPrefix, Map<ID, ?> values, Long time, TimeUnit unit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        Expiration expiration = Expiration.from(time, unit);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            values.forEach((id, value) -> {
+                RedisData redisData = new RedisData();
+                redisData.setData(value);
+                connection.set(rawKey(keyPrefix + id), encode(redisData), expiration, RedisStringCommands.SetOption.upsert());
+            });
+            return null;
+        });
+    }
+
+    /**
+     * 数据更新或删除后调用：删除redis缓存，并通知所有节点删除本地缓存
+     * @param keyPrefix key前缀
+     * @param id 数据id
+     */
+    public <ID> void evict(String keyPrefix, ID id) {
+        stringRedisTemplate.delete(keyPrefix + id);
+        invalidationBus.publish(keyPrefix, id);
     }
 
     public <R,ID> R  queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time,TimeUnit unit){
         String key=keyPrefix+id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        //1.先查本地缓存
+        R local = getLocal(keyPrefix, key, type);
+        if (local != null) {
+            return local;
+        }
+        //1.1布隆过滤器判断id一定不存在，redis和数据库都不用查了
+        if (!bloomFilter.mightContain(keyPrefix, id)) {
+            return null;
+        }
+        byte[] raw = getRaw(key);
         //2.判断是否为空
-        if (StrUtil.isNotBlank(json)) {
+        if (raw != null && raw.length > 0) {
             //不为空则直接返回
-            return JSONUtil.toBean(json, type);
+            R r = type.cast(decode(raw, type).getData());
+            putLocal(keyPrefix, key, r);
+            return r;
         }
         //增加一个判断  如果是空则直接返回空数据
-        if (json != null ) {
+        if (raw != null ) {
             return null;
         }
         //如果为空 说明redis没有 要查数据库
@@ -74,114 +198,307 @@ public class RedisClient {
             return null;
         }
         this.set(key,r,time,unit);
+        putLocal(keyPrefix, key, r);
         return r;
     }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    /**
+     * 批量查询：本地缓存 -> 一次MGET -> 未命中的一次IN查询 -> 一次pipeline写回
+     * @param keyPrefix key前缀
+     * @param ids 要查询的id
+     * @param type 数据类型
+     * @param batchDbFallback 批量查数据库，返回id到数据的映射，不存在的id不用放进去
+     * @return 按ids顺序排列的id到数据的映射，不存在的数据不在里面
+     */
+    public <R, ID> Map<ID, R> queryMany(
+            String keyPrefix, Collection<ID> ids, Class<R> type,
+            Function<Collection<ID>, Map<ID, R>> batchDbFallback, Long time, TimeUnit unit) {
+        Map<ID, R> found = new LinkedHashMap<>();
+        if (ids == null || ids.isEmpty()) {
+            return found;
+        }
+        //1.本地缓存和布隆过滤器先过一遍，剩下的才去redis
+        List<ID> remoteIds = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            R local = getLocal(keyPrefix, keyPrefix + id, type);
+            if (local != null) {
+                found.put(id, local);
+            } else if (bloomFilter.mightContain(keyPrefix, id)) {
+                remoteIds.add(id);
+            }
+        }
+        //2.一次MGET
+        List<ID> missIds = new ArrayList<>();
+        if (!remoteIds.isEmpty()) {
+            byte[][] keys = remoteIds.stream().map(id -> rawKey(keyPrefix + id)).toArray(byte[][]::new);
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(keys));
+            for (int i = 0; i < remoteIds.size(); i++) {
+                byte[] raw = values == null ? null : values.get(i);
+                ID id = remoteIds.get(i);
+                if (raw == null) {
+                    missIds.add(id);
+                } else if (raw.length > 0) {
+                    R r = type.cast(decode(raw, type).getData());
+                    putLocal(keyPrefix, keyPrefix + id, r);
+                    found.put(id, r);
+                }
+            }
+        }
+        //3.未命中的一次查库，再一次pipeline写回，不存在的写空值防穿透
+        if (!missIds.isEmpty()) {
+            Map<ID, R> loaded = batchDbFallback.apply(missIds);
+            Map<ID, R> fromDb = loaded == null ? Collections.emptyMap() : loaded;
+            Expiration expiration = Expiration.from(time, unit);
+            Expiration nullExpiration = Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : missIds) {
+                    R r = fromDb.get(id);
+                    if (r == null) {
+                        connection.set(rawKey(keyPrefix + id), new byte[0], nullExpiration, RedisStringCommands.SetOption.upsert());
+                    } else {
+                        RedisData redisData = new RedisData();
+                        redisData.setData(r);
+                        connection.set(rawKey(keyPrefix + id), encode(redisData), expiration, RedisStringCommands.SetOption.upsert());
+                    }
+                }
+                return null;
+            });
+            fromDb.forEach((id, r) -> putLocal(keyPrefix, keyPrefix + id, r));
+            found.putAll(fromDb);
+        }
+        //4.按传入的顺序返回
+        Map<ID, R> result = new LinkedHashMap<>();
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.put(id, r);
+            }
+        }
+        return result;
+    }
 
     public <R,ID> R queryWithLogicalExpire(String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFallback,Long time,TimeUnit unit) {
+        return queryWithLogicalExpire(keyPrefix, id, type, dbFallback, time, unit, 0D);
+    }
+
+    /**
+     * 逻辑过期 + 提前刷新（XFetch）
+     * 每次读都有一定概率在过期之前就触发后台重建，条件是 now - 上次重建耗时 * beta * ln(random) >= expireTime
+     * 离过期越近、重建越慢，触发的概率越大，热点key的重建就被分散开了，读请求永远不会被阻塞
+     * @param beta 越大越倾向于提前刷新，1.0是论文里的推荐值，小于等于0时只在过期后重建
+     */
+    public <R,ID> R queryWithLogicalExpire(
+            String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFallback,Long time,TimeUnit unit,double beta) {
         String key=keyPrefix+id;
-        //1.先去缓存中查询一下是否有数据
-        //1.1没有数据直接返回空
-        String json = stringRedisTemplate.opsForValue().get(key);
-        if (StrUtil.isBlank(json)){
+        //1.先查本地缓存  本地缓存的TTL很短，命中时不再判断逻辑过期
+        R local = getLocal(keyPrefix, key, type);
+        if (local != null) {
+            return local;
+        }
+        //1.1再去redis中查询一下是否有数据  没有数据直接返回空
+        byte[] raw = getRaw(key);
+        if (raw == null || raw.length == 0){
             return null;
         }
-        //1.2有数据 判断是否过期
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+        //1.2有数据 判断是否过期  一次解码同时拿到过期时间和数据
+        RedisData redisData = decode(raw, type);
         LocalDateTime expireTime = redisData.getExpireTime();
-        //这里要多转一步
-        JSONObject data = (JSONObject)redisData.getData();
-        R r = JSONUtil.toBean(data, type);
-        //1.3没有过期  则直接返回数据
-        if (expireTime.isAfter(LocalDateTime.now())){
+        R r = type.cast(redisData.getData());
+        //1.3没有过期也没抽中提前刷新  则直接返回数据  没有逻辑过期时间的不是逻辑过期写入的，当作已过期去重建
+        LocalDateTime now = LocalDateTime.now();
+        if (expireTime != null && expireTime.isAfter(now) && !shouldRefreshEarly(redisData, now, beta)){
+            putLocal(keyPrefix, key, r);
+            return r;
+        }
+        //1.4 过期了或者需要提前刷新  本节点已经在重建了就不用再去抢锁
+        if (rebuildExecutor.isRebuilding(key)) {
             return r;
         }
-        //1.4 过期了  尝试去获取锁
+        //开启独立线程去抢锁、查询数据库、重建缓存  当前请求直接返回旧数据
+        //锁在重建线程里加，和看门狗续约的线程绑定一致；拿不到说明别的节点在重建
         String lockKey=LOCK_SHOP_KEY+id;
-        boolean isLock = getLock(lockKey);
-        //获取成功 则开启独立线程去查询数据库 然后重建缓存
-        if (isLock){
-            //这里要做double check
-            //为了避免一个线程释放锁的同时另一个线程获取到了锁，那么之后的缓存重建就没有必要了
-            //过期了
-            if (!expireTime.isAfter(LocalDateTime.now())){
-                CACHE_REBUILD_EXECUTOR.submit(()->{
-                    try {
-                        // 查询数据库
-                        R r1 = dbFallback.apply(id);
-                        // 重建缓存
-                        this.setWithLogicalExpire(key, r1, time, unit);
-                    }catch (Exception e){
-                        throw new RuntimeException(e);
-                    }
-                    finally {
-                        unlock(lockKey);
-                    }
-                });
+        rebuildExecutor.submit(key, () -> {
+            if (!redisLock.tryLock(lockKey)) {
+                return;
             }
+            try {
+                // double check 别的节点可能刚重建完才放的锁
+                byte[] current = getRaw(key);
+                if (current != null && current.length > 0
+                        && !Objects.equals(decode(current, type).getExpireTime(), expireTime)) {
+                    return;
+                }
+                // 查询数据库  顺便记下重建耗时，给下一轮提前刷新用
+                long begin = System.currentTimeMillis();
+                R r1 = dbFallback.apply(id);
+                // 数据已经不存在了，写空值并带上真实的TTL，不能写一个永不过期的空壳
+                if (r1 == null) {
+                    stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                    return;
+                }
+                // 重建缓存
+                this.setWithLogicalExpire(key, r1, time, unit, Math.max(1L, System.currentTimeMillis() - begin));
+            } finally {
+                redisLock.unlock(lockKey);
+            }
+        });
+        return r;
+    }
 
+    private boolean shouldRefreshEarly(RedisData redisData, LocalDateTime now, double beta) {
+        Long rebuildMillis = redisData.getRebuildMillis();
+        if (beta <= 0 || rebuildMillis == null || rebuildMillis <= 0) {
+            return false;
         }
-        return r;
+        //-ln(random)服从指数分布，random取(0,1]避免ln(0)
+        double random = 1D - ThreadLocalRandom.current().nextDouble();
+        long gapMillis = (long) (-rebuildMillis * beta * Math.log(random));
+        return !now.plus(gapMillis, ChronoUnit.MILLIS).isBefore(redisData.getExpireTime());
     }
 
     public <R, ID> R queryWithMutex(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
-        // 1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3.存在，直接返回
-            return JSONUtil.toBean(shopJson, type);
-        }
-        // 判断命中的是否是空值
-        if (shopJson != null) {
-            // 返回一个错误信息
+        // 1.先查本地缓存
+        R local = getLocal(keyPrefix, key, type);
+        if (local != null) {
+            return local;
+        }
+        // 1.1布隆过滤器判断id一定不存在，直接返回
+        if (!bloomFilter.mightContain(keyPrefix, id)) {
             return null;
         }
+        // 1.2从redis查询商铺缓存
+        byte[] raw = getRaw(key);
+        // 2.判断是否存在  存在直接返回，命中空值返回null
+        if (raw != null) {
+            return decodeOrNull(keyPrefix, key, raw, type);
+        }
 
         // 4.实现缓存重建
-        // 4.1.获取互斥锁
+        // 同一个节点上同一个key只放一个线程去竞争分布式锁，其余线程等它的结果
+        return singleFlight.execute(key, () -> rebuildWithMutex(keyPrefix, id, type, dbFallback, time, unit));
+    }
+
+    private <R, ID> R rebuildWithMutex(
+            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
         String lockKey = LOCK_SHOP_KEY + id;
-        R r = null;
+        // 4.1.获取互斥锁  锁在别的节点手里就等它释放的通知，不轮询
+        if (!redisLock.tryLock(lockKey, MUTEX_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+            // 等太久了就直接查库返回，不写缓存，避免请求一直挂着
+            log.warn("等待缓存重建超时，直接查询数据库，key：{}", key);
+            return dbFallback.apply(id);
+        }
         try {
-            boolean isLock = getLock(lockKey);
-            // 4.2.判断是否获取成功
-            if (!isLock) {
-                // 4.3.获取锁失败，休眠并重试
-                Thread.sleep(50);
-                return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
+            // 4.2.double check 等锁期间别的节点多半已经重建完了
+            byte[] raw = getRaw(key);
+            if (raw != null) {
+                return decodeOrNull(keyPrefix, key, raw, type);
             }
-            // 4.4.获取锁成功，根据id查询数据库
-            r = dbFallback.apply(id);
-            // 5.不存在，返回错误
+            // 4.3.获取锁成功，根据id查询数据库
+            R r = dbFallback.apply(id);
+            // 5.不存在，将空值写入redis
             if (r == null) {
-                // 将空值写入redis
                 stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                // 返回错误信息
                 return null;
             }
             // 6.存在，写入redis
             this.set(key, r, time, unit);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }finally {
+            putLocal(keyPrefix, key, r);
+            return r;
+        } finally {
             // 7.释放锁
-            unlock(lockKey);
+            redisLock.unlock(lockKey);
+        }
+    }
+
+    /**
+     * 解码调用方在自己的pipeline里读到的缓存值，顺便写本地缓存
+     * @param raw 用字节数组原样读出来的值，空数组代表缓存的空值，返回null
+     */
+    public <R, ID> R decodeCached(String keyPrefix, ID id, byte[] raw, Class<R> type) {
+        return decodeOrNull(keyPrefix, keyPrefix + id, raw, type);
+    }
+
+    /**
+     * 把redis里读到的值转成对象，空字符串代表缓存的空值
+     */
+    private <R> R decodeOrNull(String keyPrefix, String key, byte[] raw, Class<R> type) {
+        if (raw.length == 0) {
+            return null;
         }
-        // 8.返回
+        R r = type.cast(decode(raw, type).getData());
+        putLocal(keyPrefix, key, r);
         return r;
     }
 
-    private boolean getLock(String lockKey) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, "1", LOCK_SHOP_TTL, TimeUnit.MINUTES);
-        //利用工具类拆箱
-        return BooleanUtil.isTrue(flag);
+    /**
+     * 查本地缓存，顺便给热点探测计数
+     * 本地存的是编码后的字节，每次读都解码出一个新对象，调用方改了返回的对象（比如给店铺设置距离）不会影响别的请求
+     */
+    private <R> R getLocal(String keyPrefix, String key, Class<R> type) {
+        hotKeyDetector.record(key);
+        byte[] bytes = nearCache.get(keyPrefix, key, byte[].class);
+        return bytes == null ? null : type.cast(decode(bytes, type).getData());
+    }
+
+    /**
+     * 写本地缓存，热点key额外钉在本地
+     */
+    private void putLocal(String keyPrefix, String key, Object value) {
+        boolean hot = hotKeyDetector.isHot(key);
+        if (value == null || (!hot && !nearCache.isEnabled(keyPrefix))) {
+            return;
+        }
+        byte[] bytes = encodeLocal(value);
+        nearCache.put(keyPrefix, key, bytes);
+        if (hot) {
+            nearCache.pin(key, bytes);
+        }
+    }
+
+    /**
+     * 本地缓存只在进程内，不受hmdp.cache.codec影响，能用二进制就用二进制，解码快
+     */
+    private byte[] encodeLocal(Object value) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        CacheCodec codec = binaryCodec.supports(value.getClass()) ? binaryCodec : jsonCodec;
+        return codec.encode(redisData);
+    }
+
+    private byte[] encode(RedisData redisData) {
+        //配置的编码不支持这个类型就退回json
+        Object value = redisData.getData();
+        CacheCodec codec = value != null && writeCodec.supports(value.getClass()) ? writeCodec : jsonCodec;
+        return codec.encode(redisData);
+    }
+
+    private RedisData decode(byte[] raw, Class<?> type) {
+        for (CacheCodec codec : codecs) {
+            if (codec.canDecode(raw)) {
+                return codec.decode(raw, type);
+            }
+        }
+        throw new IllegalStateException("无法识别的缓存格式");
+    }
+
+    /**
+     * 直接读写字节，二进制格式不能走StringRedisTemplate的字符串序列化
+     */
+    private byte[] getRaw(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey(key)));
+    }
+
+    private void setRaw(String key, byte[] value, Long time, TimeUnit unit) {
+        Expiration expiration = time == null ? Expiration.persistent() : Expiration.from(time, unit);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.set(rawKey(key), value, expiration, RedisStringCommands.SetOption.upsert()));
     }
 
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
     }
 
 
@@ -6,16 +6,74 @@ public class RedisConstants {
     public static final String LOGIN_USER_KEY = "login:token:";
 //    public static final Long LOGIN_USER_TTL = 36000L;
     public static final Long LOGIN_USER_TTL = 30L;
+    // 签名token模式下已登出token的吊销列表（zset，分数是token的过期时间）和吊销通知频道
+    public static final String LOGIN_REVOKED_KEY = "login:revoked";
+    public static final String LOGIN_REVOKE_CHANNEL = "login:revoke";
+    public static final Long LOGIN_REVOKED_BLOOM_SIZE = 100000L;
 
     public static final Long CACHE_NULL_TTL = 2L;
 
+    // 布隆过滤器：新增id的通知频道、加载时每页的id数、误判率
+    public static final String CACHE_BLOOM_CHANNEL = "cache:bloom:add";
+    public static final int CACHE_BLOOM_PAGE_SIZE = 1000;
+    public static final double CACHE_BLOOM_FPP = 0.01;
+
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    // 商铺本地缓存（L1）的容量和TTL（秒）
+    public static final Long CACHE_SHOP_LOCAL_SIZE = 1000L;
+    public static final Long CACHE_SHOP_LOCAL_TTL = 10L;
+    public static final Long CACHE_SHOP_BLOOM_SIZE = 1000000L;
+    // 商铺逻辑过期时间（秒），启动时预热每页的行数
+    public static final Long CACHE_SHOP_LOGICAL_TTL = 10L;
+    public static final int CACHE_WARM_UP_PAGE_SIZE = 500;
+    // 商铺逻辑过期缓存提前刷新的系数
+    public static final double CACHE_SHOP_XFETCH_BETA = 1.0;
+
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    // 手机号到用户的缓存，登录时用；前缀不能以cache:user:开头，布隆过滤器和本地缓存按前缀匹配
+    public static final String CACHE_PHONE_KEY = "cache:phone:";
+    public static final Long CACHE_PHONE_TTL = 30L;
+    // 批量预热时在TTL上随机增加的秒数
+    public static final long CACHE_PHONE_TTL_JITTER = 600L;
+    public static final Long CACHE_USER_BLOOM_SIZE = 10000000L;
+
+    // 本地缓存失效通知的频道，一条消息最多带多少个key
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final int CACHE_INVALIDATE_BATCH_SIZE = 500;
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    // 分布式锁释放的通知频道
+    public static final String LOCK_RELEASE_CHANNEL = "lock:release";
+    // 数据库下单时同一用户的锁
+    public static final String LOCK_ORDER_KEY = "lock:order:";
+    // 同一手机号注册的锁
+    public static final String LOCK_PHONE_KEY = "lock:phone:";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    // 秒杀活动时间（hash：begin、end毫秒时间戳）和已下单用户set
+    public static final String SECKILL_TIME_KEY = "seckill:time:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    // 秒杀券售罄、补货的通知频道
+    public static final String SECKILL_STOCK_CHANNEL = "seckill:stock";
+    // 秒杀订单的消息队列和消费者组
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    // 多次处理失败的订单消息转到这个死信队列，等人工处理
+    public static final String SECKILL_ORDER_DLQ = "stream.orders.dlq";
+    // 秒杀排队：排队zset、已放行zset、排队状态hash、有人排队的券
+    public static final String SECKILL_QUEUE_KEY = "seckill:queue:";
+    public static final String SECKILL_ADMITTED_KEY = "seckill:admitted:";
+    public static final String SECKILL_QUEUE_STATE_KEY = "seckill:queue:state:";
+    public static final String SECKILL_QUEUE_ACTIVE_KEY = "seckill:queue:active";
+    // snowflake模式的worker id租约
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final Long ID_WORKER_LEASE_TTL = 30L;
+    // 限流令牌桶
+    public static final String RATE_LIMIT_KEY = "rate:limit:";
+
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
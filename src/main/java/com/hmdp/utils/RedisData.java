@@ -8,4 +8,8 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    /**
+     * 上一次重建缓存花了多少毫秒，提前刷新时用来估算要提前多久
+     */
+    private Long rebuildMillis;
 }
@@ -1,13 +1,38 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.BooleanUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+import static com.hmdp.utils.RedisConstants.ID_WORKER_LEASE_TTL;
+
+@Slf4j
 @Component
 public class RedisIdWorker {
     /**
@@ -19,10 +44,94 @@ public class RedisIdWorker {
      */
     private static final int COUNT_BITS=32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    /**
+     * snowflake模式下低32位的拆分：秒内毫秒(10位) worker id(10位) 序列号(12位)
+     * 高位仍然是从BEGIN_TIMESTAMP开始的秒数，和另外两种模式的id大小可以直接比较
+     */
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+    /**
+     * 本地记的租约到期时间比redis里的早这么多毫秒，留给本机和redis的时钟误差、网络往返
+     */
+    private static final long LEASE_MARGIN_MILLIS = 3000;
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("lua/lease_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("lua/lease_release.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 序列号的生成方式
+     * incr：每个id一次INCR
+     * segment：一次INCRBY拿一段序列号在本地发，用到80%时后台预取下一段
+     * snowflake：启动时从redis租一个worker id，之后完全在本地生成，只有续约会访问redis
+     */
+    @Value("${hmdp.id.mode:incr}")
+    private String mode;
+
+    /**
+     * segment模式每次拿多少个序列号
+     */
+    @Value("${hmdp.id.segment.step:1000}")
+    private long step;
+
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("id-segment-", true));
+
+    /**
+     * snowflake模式的续约间隔（毫秒），租约是ID_WORKER_LEASE_TTL秒
+     */
+    @Value("${hmdp.id.snowflake.renew-interval:10000}")
+    private long renewIntervalMillis;
+
+    /**
+     * 续约用自己的线程，不和定时任务共用线程池，别的任务跑得慢也不会耽误续约
+     */
+    private final ScheduledExecutorService leaseRenewer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("id-lease-", true));
+
+    /**
+     * 租到的worker id和租约的持有者标识
+     */
+    private volatile long workerId = -1;
+    /**
+     * 租约在本地的到期时间，每次租到或续约成功时往后推；过了这个时间redis里的key可能已经过期被别的节点租走，不能再发号
+     */
+    private volatile long leaseDeadline;
+    private final String leaseToken = NetUtil.getLocalHostName() + ":" + UUID.fastUUID();
+
+    /**
+     * 上一个id用的时间（相对BEGIN_TIMESTAMP的毫秒数）和序列号，由synchronized保护
+     */
+    private long lastMillis = -1;
+    private long sequence;
+
+    @PostConstruct
+    public void init() {
+        if (isSnowflake()) {
+            leaseWorkerId();
+            leaseRenewer.scheduleWithFixedDelay(this::renewLease, renewIntervalMillis, renewIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
     public long nextId(String keyPrefix){
+        if (isSnowflake()) {
+            return nextSnowflakeId();
+        }
         //1.生成时间戳
         LocalDateTime now=LocalDateTime.now();
         long nowSecond=now.toEpochSecond(ZoneOffset.UTC);
@@ -30,13 +139,194 @@ public class RedisIdWorker {
 
         //2。生成序列号
         //2。1获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = now.format(DATE_FORMATTER);
         // 2.2.自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long count = "segment".equals(mode)
+                ? nextSequence(keyPrefix, date)
+                : stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, date));
 
         // 3.拼接并返回
         return timestamp << COUNT_BITS | count;
 
 
     }
+
+    /**
+     * 从本地号段里取序列号，号段和日期绑定，跨天后旧号段作废，
+     * 否则前一天的号段在第二天发出去，可能和第二天新拿的号段在同一秒撞上
+     */
+    private long nextSequence(String keyPrefix, String date) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, k -> new SegmentBuffer());
+        while (true) {
+            Segment current = buffer.current;
+            if (current != null && current.date.equals(date)) {
+                long value = current.cursor.getAndIncrement();
+                if (value <= current.max) {
+                    //用到80%时预取下一段，只有正好到这个位置的那个线程会触发
+                    if (value == current.prefetchAt) {
+                        prefetch(keyPrefix, buffer, date);
+                    }
+                    return value;
+                }
+            }
+            //号段用完了或者跨天了，换成预取好的下一段，没有就同步去拿
+            synchronized (buffer) {
+                if (buffer.current == current) {
+                    Segment next = buffer.next;
+                    buffer.next = null;
+                    buffer.current = next != null && next.date.equals(date) ? next : allocate(keyPrefix, date);
+                }
+            }
+        }
+    }
+
+    private void prefetch(String keyPrefix, SegmentBuffer buffer, String date) {
+        if (!buffer.loading.compareAndSet(false, true)) {
+            return;
+        }
+        prefetchExecutor.execute(() -> {
+            try {
+                Segment next = allocate(keyPrefix, date);
+                synchronized (buffer) {
+                    buffer.next = next;
+                }
+            } catch (Exception e) {
+                //预取失败不要紧，用完的时候会同步再拿
+                log.warn("预取id号段失败，前缀：{}", keyPrefix, e);
+            } finally {
+                buffer.loading.set(false);
+            }
+        });
+    }
+
+    private Segment allocate(String keyPrefix, String date) {
+        Long max = stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, date), step);
+        if (max == null) {
+            throw new IllegalStateException("获取id号段失败：" + keyPrefix);
+        }
+        return new Segment(date, max - step + 1, max, step);
+    }
+
+    private boolean isSnowflake() {
+        return "snowflake".equals(mode);
+    }
+
+    /**
+     * 时钟回拨时不等待，沿用上一次的时间继续发序列号；一毫秒内序列号用完就借用下一毫秒
+     * 生成的时间可能暂时跑在系统时钟前面，时钟追上来之后恢复正常
+     * 时间和另外两种模式一样按本地时间算（LocalDateTime.now()当作UTC），保证切换模式前后id的高位一致
+     * 租约过了本地的到期时间直接抛异常，不拿可能已经被别人占用的worker id发号；续约只在后台线程里做，不在锁里访问redis
+     */
+    private synchronized long nextSnowflakeId() {
+        long epochMillis = System.currentTimeMillis();
+        if (epochMillis >= leaseDeadline) {
+            throw new IllegalStateException("worker id租约已过期：" + workerId);
+        }
+        long now = epochMillis + TimeZone.getDefault().getOffset(epochMillis) - BEGIN_TIMESTAMP * 1000;
+        if (now > lastMillis) {
+            lastMillis = now;
+            sequence = 0;
+        } else {
+            sequence = (sequence + 1) & MAX_SEQUENCE;
+            if (sequence == 0) {
+                lastMillis++;
+            }
+        }
+        return (lastMillis / 1000) << COUNT_BITS
+                | (lastMillis % 1000) << (WORKER_BITS + SEQUENCE_BITS)
+                | workerId << SEQUENCE_BITS
+                | sequence;
+    }
+
+    /**
+     * 从随机位置开始依次尝试SET NX，拿到第一个空闲的worker id
+     */
+    private void leaseWorkerId() {
+        int start = ThreadLocalRandom.current().nextInt((int) MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            long leasedAt = System.currentTimeMillis();
+            Boolean ok = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, leaseToken, ID_WORKER_LEASE_TTL, TimeUnit.SECONDS);
+            if (BooleanUtil.isTrue(ok)) {
+                workerId = id;
+                leaseDeadline = leasedAt + TimeUnit.SECONDS.toMillis(ID_WORKER_LEASE_TTL) - LEASE_MARGIN_MILLIS;
+                log.info("租到worker id：{}", id);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有空闲的worker id");
+    }
+
+    /**
+     * 定时续约，发现租约已经被别人拿走就换一个
+     * redis暂时不可用时在本地记的到期时间之前继续用当前的worker id发号，不阻塞；过了到期时间发号会失败，直到续约成功
+     */
+    private void renewLease() {
+        if (!isSnowflake() || workerId < 0) {
+            return;
+        }
+        try {
+            long renewedAt = System.currentTimeMillis();
+            Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(ID_WORKER_KEY + workerId),
+                    leaseToken, String.valueOf(ID_WORKER_LEASE_TTL));
+            if (renewed != null && renewed == 1) {
+                leaseDeadline = renewedAt + TimeUnit.SECONDS.toMillis(ID_WORKER_LEASE_TTL) - LEASE_MARGIN_MILLIS;
+            } else if (renewed != null && renewed == 0) {
+                log.warn("worker id租约已失效，重新租用：{}", workerId);
+                // 老的worker id可能已经被别人拿走了，租到新的之前先停止发号
+                leaseDeadline = 0;
+                leaseWorkerId();
+            }
+        } catch (Exception e) {
+            if (System.currentTimeMillis() < leaseDeadline) {
+                log.warn("worker id续约失败，租约到期前继续使用：{}", workerId, e);
+            } else {
+                log.error("worker id续约失败，租约已过期，暂停发号：{}", workerId, e);
+            }
+        }
+    }
+
+    private static String counterKey(String keyPrefix, String date) {
+        return "icr:" + keyPrefix + ":" + date;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        prefetchExecutor.shutdownNow();
+        leaseRenewer.shutdownNow();
+        if (isSnowflake() && workerId >= 0) {
+            try {
+                stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(ID_WORKER_KEY + workerId), leaseToken);
+            } catch (Exception e) {
+                log.warn("释放worker id失败：{}", workerId, e);
+            }
+        }
+    }
+
+    /**
+     * 一段连续的序列号 [start, max]
+     */
+    private static class Segment {
+        private final String date;
+        private final AtomicLong cursor;
+        private final long max;
+        private final long prefetchAt;
+
+        Segment(String date, long start, long max, long step) {
+            this.date = date;
+            this.cursor = new AtomicLong(start);
+            this.max = max;
+            this.prefetchAt = start + step * 8 / 10;
+        }
+    }
+
+    /**
+     * 当前在用的号段和预取好的下一段
+     */
+    private static class SegmentBuffer {
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean();
+    }
 }
@@ -0,0 +1,246 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOCK_RELEASE_CHANNEL;
+
+/**
+ * 基于redis的可重入分布式锁
+ * 1.锁是一个hash，field是持有者（节点标识:线程id），value是重入次数，解锁时在lua里比较持有者，不会误删别人的锁
+ * 2.持有期间看门狗每隔三分之一个租约续约一次；持有者挂了最多一个租约时长锁就会自动释放
+ *   看门狗用自己的线程，不和定时任务共用线程池，别的任务跑得慢也不会耽误续约
+ * 3.等锁的线程不轮询，锁释放时通过redis频道通知，收到通知再去抢；通知丢了也最多等到锁的剩余租约到期
+ * 锁和线程绑定，加锁和解锁必须在同一个线程里
+ */
+@Slf4j
+@Component
+public class RedisLock implements MessageListener {
+
+    private static final DefaultRedisScript<Long> LOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+
+    static {
+        LOCK_SCRIPT = new DefaultRedisScript<>();
+        LOCK_SCRIPT.setLocation(new ClassPathResource("lua/lock.lua"));
+        LOCK_SCRIPT.setResultType(Long.class);
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("lua/unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("lua/lock_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 租约时长（毫秒），看门狗每隔三分之一个租约续约一次，连续两次续约失败锁也还在
+     */
+    @Value("${hmdp.lock.lease:10000}")
+    private long leaseMillis;
+
+    private final String nodeId = NetUtil.getLocalHostName() + ":" + UUID.fastUUID();
+
+    /**
+     * 本节点持有的锁，key是锁key和持有者，看门狗按这里续约
+     */
+    private final Map<String, Holder> held = new ConcurrentHashMap<>();
+
+    /**
+     * 正在等待的锁，收到释放通知时唤醒
+     */
+    private final Map<String, Signal> signals = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("lock-watchdog-", true));
+
+    @PostConstruct
+    public void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(LOCK_RELEASE_CHANNEL));
+        long interval = Math.max(leaseMillis / 3, 1);
+        watchdog.scheduleAtFixedRate(this::renew, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        watchdog.shutdownNow();
+    }
+
+    /**
+     * 尝试加锁，不等待
+     */
+    public boolean tryLock(String key) {
+        return acquire(key, currentOwner()) == 0;
+    }
+
+    /**
+     * 尝试加锁，拿不到就等锁释放的通知，最多等waitTime
+     */
+    public boolean tryLock(String key, long waitTime, TimeUnit unit) {
+        String owner = currentOwner();
+        long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+        Signal signal = enter(key);
+        try {
+            while (true) {
+                // 先记下版本再去抢，抢失败之后如果版本变了说明中间已经释放过，不用再等
+                long version;
+                synchronized (signal) {
+                    version = signal.version;
+                }
+                long ttl = acquire(key, owner);
+                if (ttl == 0) {
+                    return true;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                synchronized (signal) {
+                    if (signal.version == version) {
+                        signal.wait(Math.min(ttl, remaining));
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            leave(key);
+        }
+    }
+
+    public void unlock(String key) {
+        String owner = currentOwner();
+        Long result = stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(key),
+                owner, String.valueOf(leaseMillis), LOCK_RELEASE_CHANNEL);
+        String heldKey = heldKey(key, owner);
+        if (result == null || result < 0) {
+            held.remove(heldKey);
+            log.warn("解锁时发现锁已经不属于当前线程：{}", key);
+            return;
+        }
+        if (result == 0) {
+            held.remove(heldKey);
+        } else {
+            held.computeIfPresent(heldKey, (k, h) -> --h.count == 0 ? null : h);
+        }
+    }
+
+    public boolean isHeldByCurrentThread(String key) {
+        return held.containsKey(heldKey(key, currentOwner()));
+    }
+
+    /**
+     * 看门狗：给本节点持有的锁续约，发现锁已经丢了（比如长时间GC租约过期被别人拿走）就不再续
+     */
+    private void renew() {
+        held.forEach((heldKey, holder) -> {
+            try {
+                Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(holder.key),
+                        holder.owner, String.valueOf(leaseMillis));
+                if (renewed != null && renewed == 0) {
+                    held.remove(heldKey, holder);
+                    log.warn("锁在持有期间丢失：{}", holder.key);
+                }
+            } catch (Exception e) {
+                log.warn("锁续约失败：{}", holder.key, e);
+            }
+        });
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        Signal signal = signals.get(new String(message.getBody(), StandardCharsets.UTF_8));
+        if (signal != null) {
+            synchronized (signal) {
+                signal.version++;
+                signal.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return 0加锁成功，否则是锁剩余的毫秒数
+     */
+    private long acquire(String key, String owner) {
+        Long ttl = stringRedisTemplate.execute(LOCK_SCRIPT, Collections.singletonList(key), String.valueOf(leaseMillis), owner);
+        if (ttl == null) {
+            return leaseMillis;
+        }
+        if (ttl == 0) {
+            held.compute(heldKey(key, owner), (k, h) -> {
+                if (h == null) {
+                    h = new Holder(key, owner);
+                }
+                h.count++;
+                return h;
+            });
+        }
+        return ttl;
+    }
+
+    private Signal enter(String key) {
+        return signals.compute(key, (k, s) -> {
+            if (s == null) {
+                s = new Signal();
+            }
+            s.waiters++;
+            return s;
+        });
+    }
+
+    private void leave(String key) {
+        signals.computeIfPresent(key, (k, s) -> --s.waiters == 0 ? null : s);
+    }
+
+    private String currentOwner() {
+        return nodeId + ":" + Thread.currentThread().getId();
+    }
+
+    private static String heldKey(String key, String owner) {
+        return key + "|" + owner;
+    }
+
+    private static class Holder {
+        private final String key;
+        private final String owner;
+        private int count;
+
+        Holder(String key, String owner) {
+            this.key = key;
+            this.owner = owner;
+        }
+    }
+
+    private static class Signal {
+        private long version;
+        private int waiters;
+    }
+}
@@ -1,29 +1,24 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.HandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
-
-import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
-import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
-
 /**
  * 注意这里不能注册到spring中 因为拦截器比spring先执行  先初始化
  */
 public class RefreshTokenInterceptor implements HandlerInterceptor {
 
-    private StringRedisTemplate stringRedisTemplate;
+    private SessionCache sessionCache;
 
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
-        this.stringRedisTemplate = stringRedisTemplate;
+    private SignedToken signedToken;
+
+    public RefreshTokenInterceptor(SessionCache sessionCache, SignedToken signedToken) {
+        this.sessionCache = sessionCache;
+        this.signedToken = signedToken;
     }
 
     @Override
@@ -33,23 +28,34 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         if (StrUtil.isBlank(token)) {
             return true;
         }
-        // 2.基于TOKEN获取redis中的用户
-        String key  = LOGIN_USER_KEY + token;
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(key);
+        // 2.基于TOKEN获取用户  签名token本地校验；redis登录态先查本地缓存，有效期快到了才去redis刷新
+        // 签名模式下不带点的是切换前签发的redis登录态，继续认到它自然过期
+        UserDTO userDTO = signedToken.isEnabled() && token.indexOf('.') > 0
+                ? verifySigned(token, response)
+                : sessionCache.get(token);
         // 3.判断用户是否存在
-        if (userMap.isEmpty()) {
+        if (userDTO == null) {
             return true;
         }
-        // 5.将查询到的hash数据转为UserDTO
-        UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
-        // 6.存在，保存用户信息到 ThreadLocal
+        // 4.存在，保存用户信息到 ThreadLocal
         UserHolder.saveUser(userDTO);
-        // 7.刷新token有效期
-        stringRedisTemplate.expire(key, LOGIN_USER_TTL, TimeUnit.MINUTES);
-        // 8.放行
+        // 5.放行
         return true;
     }
 
+    private UserDTO verifySigned(String token, HttpServletResponse response) {
+        SignedToken.Claims claims = signedToken.verify(token);
+        if (claims == null) {
+            return null;
+        }
+        // 快过期了，换发新token放在响应头里
+        String renewed = signedToken.renewIfNeeded(claims);
+        if (renewed != null) {
+            response.setHeader(SignedToken.RENEW_HEADER, renewed);
+        }
+        return claims.getUser();
+    }
+
     @Override
     public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
         // 移除用户
@@ -0,0 +1,121 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_CHANNEL;
+
+/**
+ * 秒杀券的本地售罄标记
+ * 卖完之后的请求在本节点直接拒绝，不用再去redis；售罄和补货通过redis频道通知所有节点
+ * 标记带TTL，补货的消息万一丢了，过期后最多再去redis确认一次
+ * 库存影子记录本节点见过的最小剩余库存，见到0就可以直接标记售罄
+ * 库存除了补货都只会减少，补货（新建、预热、修改库存加库存）时调用reset清掉影子和售罄标记；
+ * 分段库存重新拉平时库存会暂时不可见，拉平期间本节点不会拿0来标记，拉平完如果已经被标记了售罄也会reset
+ */
+@Slf4j
+@Component
+public class SeckillStockGuard implements MessageListener {
+
+    private static final String SOLD_OUT = "soldout:";
+    private static final String RESET = "reset:";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Value("${hmdp.seckill.sold-out-ttl:60}")
+    private long soldOutTtlSeconds;
+
+    @Value("${hmdp.seckill.stock-shadow.enabled:true}")
+    private boolean shadowEnabled;
+
+    private Cache<Long, Boolean> soldOut;
+
+    private final Map<Long, AtomicLong> stockShadow = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        soldOut = Caffeine.newBuilder()
+                .maximumSize(10000)
+                .expireAfterWrite(soldOutTtlSeconds, TimeUnit.SECONDS)
+                .build();
+        listenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_STOCK_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOut.getIfPresent(voucherId) != null;
+    }
+
+    /**
+     * 记录秒杀脚本看到的剩余库存
+     * @param remaining 扣减之后redis里剩余的库存
+     */
+    public void observe(Long voucherId, long remaining) {
+        if (!shadowEnabled || remaining < 0) {
+            return;
+        }
+        long min = stockShadow.computeIfAbsent(voucherId, id -> new AtomicLong(Long.MAX_VALUE))
+                .accumulateAndGet(remaining, Math::min);
+        if (min <= 0) {
+            markSoldOut(voucherId);
+        }
+    }
+
+    /**
+     * 标记售罄并通知其他节点
+     */
+    public void markSoldOut(Long voucherId) {
+        if (isSoldOut(voucherId)) {
+            return;
+        }
+        soldOut.put(voucherId, Boolean.TRUE);
+        stringRedisTemplate.convertAndSend(SECKILL_STOCK_CHANNEL, SOLD_OUT + voucherId);
+        log.debug("秒杀券已售罄：{}", voucherId);
+    }
+
+    /**
+     * 补货之后清除售罄标记和库存影子，并通知其他节点
+     */
+    public void reset(Long voucherId) {
+        clear(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_STOCK_CHANNEL, RESET + voucherId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            if (body.startsWith(SOLD_OUT)) {
+                soldOut.put(Long.valueOf(body.substring(SOLD_OUT.length())), Boolean.TRUE);
+            } else if (body.startsWith(RESET)) {
+                clear(Long.valueOf(body.substring(RESET.length())));
+            }
+        } catch (NumberFormatException e) {
+            log.warn("无法识别的库存消息：{}", body);
+        }
+    }
+
+    private void clear(Long voucherId) {
+        soldOut.invalidate(voucherId);
+        stockShadow.remove(voucherId);
+    }
+}
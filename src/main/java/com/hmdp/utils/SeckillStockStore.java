@@ -0,0 +1,430 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存在redis里的布局和扣减
+ * 默认每张券一个库存key，和活动时间、已下单用户同一个hash tag {voucherId}，一个脚本判断资格扣库存，成功后再往共用的订单队列发消息；hmdp.seckill.stock-segments大于1时，库存平均拆成N段，
+ * 第i段的key和第i个订单队列用同一个hash tag {seg i}，在集群里同一张券的N段分散在N个槽上，热点券不再压在一个分片
+ * 分段模式下先用一个脚本判断活动时间并占住一人一单的资格，再按用户id选一段扣库存，没库存就换下一段，全都没有再把资格还回去
+ * 某一段快扣完时在后台把各段重新拉平，拉平期间挪动中的库存哪一段都看不到，这时各段都扣不到不算售罄
+ */
+@Slf4j
+@Component
+public class SeckillStockStore {
+
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> RESERVE_SCRIPT;
+    private static final DefaultRedisScript<List> SEGMENT_SCRIPT;
+    private static final DefaultRedisScript<Long> TAKE_SCRIPT;
+    private static final DefaultRedisScript<Long> ADD_SCRIPT;
+
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("lua/seckill.lua"));
+        SECKILL_SCRIPT.setResultType(List.class);
+        RESERVE_SCRIPT = new DefaultRedisScript<>();
+        RESERVE_SCRIPT.setLocation(new ClassPathResource("lua/seckill_reserve.lua"));
+        RESERVE_SCRIPT.setResultType(Long.class);
+        SEGMENT_SCRIPT = new DefaultRedisScript<>();
+        SEGMENT_SCRIPT.setLocation(new ClassPathResource("lua/seckill_segment.lua"));
+        SEGMENT_SCRIPT.setResultType(List.class);
+        TAKE_SCRIPT = new DefaultRedisScript<>();
+        TAKE_SCRIPT.setLocation(new ClassPathResource("lua/stock_take.lua"));
+        TAKE_SCRIPT.setResultType(Long.class);
+        ADD_SCRIPT = new DefaultRedisScript<>();
+        ADD_SCRIPT.setLocation(new ClassPathResource("lua/stock_add.lua"));
+        ADD_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 脚本的结果码
+     */
+    public static final int CODE_SUCCESS = 0;
+    public static final int CODE_SOLD_OUT = 1;
+    public static final int CODE_NOT_LOADED = 5;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CacheRebuildExecutor rebuildExecutor;
+
+    @Resource
+    private SeckillStockGuard seckillStockGuard;
+
+    /**
+     * 本节点正在重新拉平的券
+     */
+    private final Set<Long> rebalancing = ConcurrentHashMap.newKeySet();
+
+    @Value("${hmdp.seckill.stock-segments:1}")
+    private int segments;
+
+    /**
+     * 某一段剩余库存低于这个值时触发重新拉平
+     */
+    @Value("${hmdp.seckill.rebalance-threshold:10}")
+    private long rebalanceThreshold;
+
+    public boolean isSegmented() {
+        return segments > 1;
+    }
+
+    /**
+     * 不分段时的库存key，和活动时间、已下单用户用同一个hash tag，秒杀脚本在集群里只访问一个槽
+     */
+    public static String stockKey(Long voucherId) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + "}";
+    }
+
+    public static String timeKey(Long voucherId) {
+        return SECKILL_TIME_KEY + "{" + voucherId + "}";
+    }
+
+    public static String buyersKey(Long voucherId) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + "}";
+    }
+
+    public static String segmentKey(Long voucherId, int segment) {
+        return SECKILL_STOCK_KEY + "{seg" + segment + "}:" + voucherId;
+    }
+
+    public static String segmentStream(int segment) {
+        return SECKILL_ORDER_STREAM + ":{seg" + segment + "}";
+    }
+
+    /**
+     * 所有需要消费的订单队列，切换过分段模式也不会漏掉老队列里的消息
+     */
+    public List<String> streams() {
+        List<String> streams = new ArrayList<>();
+        streams.add(SECKILL_ORDER_STREAM);
+        if (isSegmented()) {
+            for (int i = 0; i < segments; i++) {
+                streams.add(segmentStream(i));
+            }
+        }
+        return streams;
+    }
+
+    /**
+     * 秒杀资格判断和扣库存
+     * @return {结果码, 剩余库存}，剩余库存未知时为-1；分段模式下只有全部卖完才会返回已知的剩余库存0，
+     * 本节点正在重新拉平时各段都扣不到也只返回库存不足、剩余库存未知，不能据此标记售罄
+     */
+    public long[] admit(Long voucherId, Long userId, long orderId) {
+        String now = String.valueOf(System.currentTimeMillis());
+        if (!isSegmented()) {
+            long[] result = toResult(stringRedisTemplate.execute(SECKILL_SCRIPT,
+                    Arrays.asList(stockKey(voucherId), timeKey(voucherId), buyersKey(voucherId)),
+                    userId.toString(), now));
+            if (result[0] == CODE_SUCCESS) {
+                sendOrder(voucherId, userId, orderId);
+            }
+            return result;
+        }
+        // 1.活动时间和一人一单
+        Long reserved = stringRedisTemplate.execute(RESERVE_SCRIPT,
+                Arrays.asList(timeKey(voucherId), buyersKey(voucherId)), userId.toString(), now);
+        if (reserved == null || reserved != CODE_SUCCESS) {
+            return new long[]{reserved == null ? -1 : reserved, -1};
+        }
+        // 2.从用户对应的那一段开始扣，没有库存就换下一段
+        int start = Math.floorMod(userId.hashCode(), segments);
+        boolean loaded = false;
+        for (int i = 0; i < segments; i++) {
+            int segment = (start + i) % segments;
+            long[] result = toResult(stringRedisTemplate.execute(SEGMENT_SCRIPT,
+                    Arrays.asList(segmentKey(voucherId, segment), segmentStream(segment)),
+                    userId.toString(), voucherId.toString(), String.valueOf(orderId)));
+            if (result[0] == CODE_SUCCESS) {
+                if (result[1] <= rebalanceThreshold) {
+                    rebalanceAsync(voucherId);
+                }
+                return new long[]{CODE_SUCCESS, -1};
+            }
+            loaded |= result[0] != CODE_NOT_LOADED;
+        }
+        // 3.每一段都没有库存，把占住的资格还回去
+        stringRedisTemplate.opsForSet().remove(buyersKey(voucherId), userId.toString());
+        if (!loaded) {
+            return new long[]{CODE_NOT_LOADED, -1};
+        }
+        return new long[]{CODE_SOLD_OUT, rebalancing.contains(voucherId) ? -1 : 0};
+    }
+
+    /**
+     * 不分段时订单队列是所有券共用的，和券的key不在一个槽，脚本扣完库存再单独发消息
+     * 发消息失败就把库存和资格还回去，让用户可以重试
+     */
+    private void sendOrder(Long voucherId, Long userId, long orderId) {
+        Map<String, String> order = new HashMap<>(4);
+        order.put("userId", userId.toString());
+        order.put("voucherId", voucherId.toString());
+        order.put("id", String.valueOf(orderId));
+        try {
+            stringRedisTemplate.opsForStream().add(SECKILL_ORDER_STREAM, order);
+        } catch (RuntimeException e) {
+            try {
+                stringRedisTemplate.opsForValue().increment(stockKey(voucherId));
+                stringRedisTemplate.opsForSet().remove(buyersKey(voucherId), userId.toString());
+            } catch (RuntimeException re) {
+                log.error("秒杀订单消息发送失败且库存没能还回去，券：{}，用户：{}", voucherId, userId, re);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 把库存和活动时间写入redis，库存只在redis里没有时写入
+     * @return 新写入了库存的券
+     */
+    public List<Long> load(List<SeckillVoucher> vouchers) {
+        if (vouchers.isEmpty()) {
+            return Collections.emptyList();
+        }
+        int parts = isSegmented() ? segments : 1;
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (SeckillVoucher voucher : vouchers) {
+                Long voucherId = voucher.getVoucherId();
+                if (isSegmented()) {
+                    long[] split = split(voucher.getStock());
+                    for (int i = 0; i < segments; i++) {
+                        conn.setNX(segmentKey(voucherId, i), String.valueOf(split[i]));
+                    }
+                } else {
+                    conn.setNX(stockKey(voucherId), String.valueOf(voucher.getStock()));
+                }
+                //活动时间以数据库为准，直接覆盖
+                Map<String, String> window = new HashMap<>(4);
+                window.put("begin", String.valueOf(toMillis(voucher.getBeginTime())));
+                window.put("end", String.valueOf(toMillis(voucher.getEndTime())));
+                conn.hMSet(timeKey(voucherId), window);
+            }
+            return null;
+        });
+        //hMSet的状态回复不会出现在结果里，剩下的依次是每张券每一段setNX的结果
+        List<Long> seeded = new ArrayList<>();
+        for (int i = 0; i < vouchers.size(); i++) {
+            for (int j = i * parts; j < (i + 1) * parts && j < results.size(); j++) {
+                if (Boolean.TRUE.equals(results.get(j))) {
+                    seeded.add(vouchers.get(i).getVoucherId());
+                    break;
+                }
+            }
+        }
+        return seeded;
+    }
+
+    /**
+     * 新建秒杀券后覆盖写入库存和活动时间，在一个事务里执行
+     * 只能用在还没开卖的券上，开卖之后redis里的库存已经被扣过，修改库存要用{@link #adjust}
+     * @param clearBuyers 是否清空已下单用户，新建的券要清掉同id的残留数据
+     */
+    public void seed(SeckillVoucher voucher, boolean clearBuyers) {
+        Long voucherId = voucher.getVoucherId();
+        Map<String, String> window = new HashMap<>(4);
+        window.put("begin", String.valueOf(toMillis(voucher.getBeginTime())));
+        window.put("end", String.valueOf(toMillis(voucher.getEndTime())));
+        stringRedisTemplate.execute(new SessionCallback<List<Object>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> List<Object> execute(RedisOperations<K, V> operations) {
+                RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                ops.multi();
+                if (isSegmented()) {
+                    long[] split = split(voucher.getStock());
+                    for (int i = 0; i < segments; i++) {
+                        ops.opsForValue().set(segmentKey(voucherId, i), String.valueOf(split[i]));
+                    }
+                } else {
+                    ops.opsForValue().set(stockKey(voucherId), String.valueOf(voucher.getStock()));
+                }
+                ops.opsForHash().putAll(timeKey(voucherId), window);
+                if (clearBuyers) {
+                    ops.delete(buyersKey(voucherId));
+                }
+                return ops.exec();
+            }
+        });
+    }
+
+    /**
+     * 只覆盖活动时间，库存不动
+     */
+    public void window(SeckillVoucher voucher) {
+        Map<String, String> window = new HashMap<>(4);
+        window.put("begin", String.valueOf(toMillis(voucher.getBeginTime())));
+        window.put("end", String.valueOf(toMillis(voucher.getEndTime())));
+        stringRedisTemplate.opsForHash().putAll(timeKey(voucher.getVoucherId()), window);
+    }
+
+    /**
+     * 按差值加减redis里的库存，不会覆盖掉已经扣掉的部分
+     * 加库存按和预热一样的拆法加到各段上；减库存用脚本从各段拿，最多拿到0，和扣减并发也不会减成负数
+     * @return 实际加减的数量，减库存时可能比要求的少；redis里还没有这张券的库存时返回null
+     */
+    public Long adjust(Long voucherId, long delta) {
+        List<String> keys = new ArrayList<>(segments);
+        if (isSegmented()) {
+            for (int i = 0; i < segments; i++) {
+                keys.add(segmentKey(voucherId, i));
+            }
+        } else {
+            keys.add(stockKey(voucherId));
+        }
+        if (delta >= 0) {
+            long[] split = isSegmented() ? split(delta) : new long[]{delta};
+            long added = 0;
+            boolean loaded = false;
+            for (int i = 0; i < keys.size(); i++) {
+                Long stock = stringRedisTemplate.execute(ADD_SCRIPT, Collections.singletonList(keys.get(i)),
+                        String.valueOf(split[i]));
+                if (stock != null) {
+                    loaded = true;
+                    added += split[i];
+                }
+            }
+            return loaded ? added : null;
+        }
+        long taken = 0;
+        for (int i = 0; i < keys.size() && taken < -delta; i++) {
+            Long take = stringRedisTemplate.execute(TAKE_SCRIPT, Collections.singletonList(keys.get(i)),
+                    String.valueOf(-delta - taken));
+            taken += take == null ? 0 : take;
+        }
+        if (taken == 0 && total(voucherId) == null) {
+            return null;
+        }
+        return -taken;
+    }
+
+    /**
+     * redis里这张券的总库存，没有预热过返回null
+     */
+    public Long total(Long voucherId) {
+        List<String> keys = new ArrayList<>();
+        if (isSegmented()) {
+            for (int i = 0; i < segments; i++) {
+                keys.add(segmentKey(voucherId, i));
+            }
+        } else {
+            keys.add(stockKey(voucherId));
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (values == null || values.stream().allMatch(v -> v == null)) {
+            return null;
+        }
+        return values.stream().filter(v -> v != null).mapToLong(Long::parseLong).sum();
+    }
+
+    /**
+     * 把总数平均拆成N段，除不尽的放在前面几段
+     */
+    long[] split(long total) {
+        long[] split = new long[segments];
+        for (int i = 0; i < segments; i++) {
+            split[i] = total / segments + (i < total % segments ? 1 : 0);
+        }
+        return split;
+    }
+
+    private void rebalanceAsync(Long voucherId) {
+        rebuildExecutor.submit("seckill:rebalance:" + voucherId, () -> rebalance(voucherId));
+    }
+
+    /**
+     * 重新拉平各段的库存：多的段用脚本拿走（最多拿到0，不会和扣减抢成负数），再加到少的段上
+     * 拿走和加上之间库存只是暂时不可见，总数不变，不会超卖；
+     * 这期间别的节点可能误判售罄并广播，拉平完还有库存的话清掉售罄标记
+     */
+    void rebalance(Long voucherId) {
+        rebalancing.add(voucherId);
+        try {
+            doRebalance(voucherId);
+        } finally {
+            rebalancing.remove(voucherId);
+        }
+    }
+
+    private void doRebalance(Long voucherId) {
+        List<String> keys = new ArrayList<>(segments);
+        for (int i = 0; i < segments; i++) {
+            keys.add(segmentKey(voucherId, i));
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (values == null) {
+            return;
+        }
+        long[] current = new long[segments];
+        long total = 0;
+        for (int i = 0; i < segments; i++) {
+            current[i] = values.get(i) == null ? 0 : Long.parseLong(values.get(i));
+            total += current[i];
+        }
+        if (total <= 0) {
+            return;
+        }
+        long[] target = split(total);
+        long moving = 0;
+        for (int i = 0; i < segments; i++) {
+            if (current[i] > target[i]) {
+                Long taken = stringRedisTemplate.execute(TAKE_SCRIPT, Collections.singletonList(keys.get(i)),
+                        String.valueOf(current[i] - target[i]));
+                moving += taken == null ? 0 : taken;
+            }
+        }
+        for (int i = 0; i < segments && moving > 0; i++) {
+            if (current[i] < target[i]) {
+                long give = Math.min(target[i] - current[i], moving);
+                stringRedisTemplate.opsForValue().increment(keys.get(i), give);
+                moving -= give;
+            }
+        }
+        //少的段在这期间又被扣了，剩下的放回第一段
+        if (moving > 0) {
+            stringRedisTemplate.opsForValue().increment(keys.get(0), moving);
+        }
+        if (seckillStockGuard.isSoldOut(voucherId)) {
+            seckillStockGuard.reset(voucherId);
+        }
+        log.debug("秒杀库存重新拉平，券：{}，总库存：{}", voucherId, total);
+    }
+
+    private static long[] toResult(List<?> reply) {
+        if (reply == null || reply.size() < 2) {
+            return new long[]{-1, -1};
+        }
+        return new long[]{((Number) reply.get(0)).longValue(), ((Number) reply.get(1)).longValue()};
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,168 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀排队
+ * 开抢瞬间的请求先进redis的排队zset，按入队顺序以固定速率分批放行，放行的用户在有效期内才能下单，
+ * 把开抢时的尖峰摊平成秒杀脚本处理得过来的匀速流量
+ * 客户端按返回的retryAfter轮询，间隔随轮询次数指数增长，但不超过预计排到的时间，快排到的人查得勤一些
+ */
+@Slf4j
+@Component
+public class SeckillWaitingRoom {
+
+    private static final DefaultRedisScript<List> QUEUE_SCRIPT;
+    private static final DefaultRedisScript<Long> ADMIT_SCRIPT;
+
+    static {
+        QUEUE_SCRIPT = new DefaultRedisScript<>();
+        QUEUE_SCRIPT.setLocation(new ClassPathResource("lua/seckill_queue.lua"));
+        QUEUE_SCRIPT.setResultType(List.class);
+        ADMIT_SCRIPT = new DefaultRedisScript<>();
+        ADMIT_SCRIPT.setLocation(new ClassPathResource("lua/seckill_queue_admit.lua"));
+        ADMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 排队脚本的返回码
+     */
+    public static final int CODE_QUEUED = 0;
+    public static final int CODE_ADMITTED = 1;
+    public static final int CODE_NOT_QUEUED = 2;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.seckill.queue.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * 每秒放行人数（所有节点合计）
+     */
+    @Value("${hmdp.seckill.queue.rate:500}")
+    private double rate;
+
+    /**
+     * 一次最多放行人数
+     */
+    @Value("${hmdp.seckill.queue.max-batch:200}")
+    private int maxBatch;
+
+    /**
+     * 放行之后多久之内必须下单（毫秒）
+     */
+    @Value("${hmdp.seckill.queue.admit-ttl:30000}")
+    private long admitTtl;
+
+    /**
+     * 轮询间隔的起点和上限（毫秒）
+     */
+    @Value("${hmdp.seckill.queue.backoff-base:500}")
+    private long backoffBase;
+
+    @Value("${hmdp.seckill.queue.backoff-max:10000}")
+    private long backoffMax;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public static String queueKey(Long voucherId) {
+        return SECKILL_QUEUE_KEY + "{" + voucherId + "}";
+    }
+
+    public static String admittedKey(Long voucherId) {
+        return SECKILL_ADMITTED_KEY + "{" + voucherId + "}";
+    }
+
+    public static String stateKey(Long voucherId) {
+        return SECKILL_QUEUE_STATE_KEY + "{" + voucherId + "}";
+    }
+
+    /**
+     * 加入队列或查询排队状态
+     * @param join 不在队列中时是否加入
+     * @return {结果码, 排队位置}，结果码见CODE_*，活动已结束、没有预热沿用秒杀脚本的4、5
+     */
+    public long[] ticket(Long voucherId, Long userId, boolean join) {
+        List<?> reply = stringRedisTemplate.execute(QUEUE_SCRIPT,
+                Arrays.asList(queueKey(voucherId), admittedKey(voucherId), stateKey(voucherId), SeckillStockStore.timeKey(voucherId)),
+                userId.toString(), String.valueOf(System.currentTimeMillis()), join ? "1" : "0");
+        if (reply == null || reply.size() < 2) {
+            return new long[]{-1, 0};
+        }
+        long code = ((Number) reply.get(0)).longValue();
+        if (code == CODE_QUEUED && join) {
+            stringRedisTemplate.opsForSet().add(SECKILL_QUEUE_ACTIVE_KEY, voucherId.toString());
+        }
+        return new long[]{code, ((Number) reply.get(1)).longValue()};
+    }
+
+    /**
+     * 是否已放行且还在有效期内
+     */
+    public boolean isAdmitted(Long voucherId, Long userId) {
+        Double deadline = stringRedisTemplate.opsForZSet().score(admittedKey(voucherId), userId.toString());
+        return deadline != null && deadline > System.currentTimeMillis();
+    }
+
+    /**
+     * 下单有了结果，放行资格用掉了
+     */
+    public void release(Long voucherId, Long userId) {
+        stringRedisTemplate.opsForZSet().remove(admittedKey(voucherId), userId.toString());
+    }
+
+    /**
+     * 定时放行，每个节点都执行，速率由脚本按时间控制
+     */
+    @Scheduled(fixedRateString = "${hmdp.seckill.queue.admit-interval:100}")
+    public void admit() {
+        if (!enabled) {
+            return;
+        }
+        Set<String> active = stringRedisTemplate.opsForSet().members(SECKILL_QUEUE_ACTIVE_KEY);
+        if (active == null) {
+            return;
+        }
+        String now = String.valueOf(System.currentTimeMillis());
+        for (String id : active) {
+            Long voucherId = Long.valueOf(id);
+            try {
+                Long waiting = stringRedisTemplate.execute(ADMIT_SCRIPT,
+                        Arrays.asList(queueKey(voucherId), admittedKey(voucherId), stateKey(voucherId), SeckillStockStore.timeKey(voucherId)),
+                        now, String.valueOf(rate), String.valueOf(maxBatch), String.valueOf(admitTtl));
+                // 活动结束了不用再放行
+                if (waiting != null && waiting < 0) {
+                    stringRedisTemplate.opsForSet().remove(SECKILL_QUEUE_ACTIVE_KEY, id);
+                }
+            } catch (Exception e) {
+                log.warn("秒杀排队放行失败，券：{}", voucherId, e);
+            }
+        }
+    }
+
+    /**
+     * 建议的轮询间隔：指数退避，不超过上限，也不超过按放行速率预计排到的时间
+     * @param attempt 客户端第几次轮询
+     */
+    public long backoff(long position, int attempt) {
+        long exponential = backoffBase << Math.min(Math.max(attempt, 0), 20);
+        long expected = (long) (position * 1000 / rate);
+        return Math.max(backoffBase, Math.min(Math.min(exponential, backoffMax), expected));
+    }
+}
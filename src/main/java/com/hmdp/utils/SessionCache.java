@@ -0,0 +1,151 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.dto.UserDTO;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
+
+/**
+ * 登录态的本地缓存
+ * token对应的用户在本地缓存几十秒，命中时不访问redis也不用反射转换；未命中时HGETALL和PTTL一次pipeline读回来
+ * token的有效期不再每个请求都刷新，只有估计的剩余时间低于阈值时才刷新，并且同一个token在本节点每隔一段时间最多刷新一次
+ * 登出时删除redis里的token，并通过失效通知清掉所有节点的本地缓存
+ */
+@Component
+public class SessionCache {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private NearCache nearCache;
+
+    @Resource
+    private CacheInvalidationBus invalidationBus;
+
+    @Value("${hmdp.session.local-size:100000}")
+    private long localSize;
+
+    /**
+     * 本地缓存的时间（秒），其他节点删除token后最多过这么久本节点才会发现（失效通知丢失的情况）
+     */
+    @Value("${hmdp.session.local-ttl:30}")
+    private long localTtl;
+
+    /**
+     * 剩余有效期低于多少秒时刷新
+     */
+    @Value("${hmdp.session.refresh-threshold:1200}")
+    private long refreshThreshold;
+
+    /**
+     * 同一个token两次刷新之间至少间隔多少秒
+     */
+    @Value("${hmdp.session.refresh-interval:60}")
+    private long refreshInterval;
+
+    @PostConstruct
+    public void init() {
+        nearCache.register(LOGIN_USER_KEY, localSize, localTtl, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 根据token查询登录用户，顺便按需刷新有效期
+     * @return token不存在或已过期返回null
+     */
+    public UserDTO get(String token) {
+        String key = LOGIN_USER_KEY + token;
+        long now = System.currentTimeMillis();
+        Session session = nearCache.get(LOGIN_USER_KEY, key, Session.class);
+        if (session == null || session.expireAt <= now) {
+            session = load(key, now);
+            if (session == null) {
+                return null;
+            }
+            nearCache.put(LOGIN_USER_KEY, key, session);
+        }
+        if (!refreshIfNeeded(key, session, now)) {
+            nearCache.invalidate(key);
+            return null;
+        }
+        //本地缓存里的用户是共享的，返回一份复制，请求里改了也不影响别的请求
+        return copy(session.user);
+    }
+
+    private static UserDTO copy(UserDTO user) {
+        UserDTO copy = new UserDTO();
+        copy.setId(user.getId());
+        copy.setNickName(user.getNickName());
+        copy.setIcon(user.getIcon());
+        return copy;
+    }
+
+    /**
+     * 登出，删除token并通知所有节点
+     */
+    public void invalidate(String token) {
+        stringRedisTemplate.delete(LOGIN_USER_KEY + token);
+        invalidationBus.publish(LOGIN_USER_KEY, token);
+    }
+
+    private Session load(String key, long now) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.hGetAll(rawKey);
+            connection.pTtl(rawKey);
+            return null;
+        });
+        Map<?, ?> userMap = (Map<?, ?>) results.get(0);
+        if (userMap == null || userMap.isEmpty()) {
+            return null;
+        }
+        Long pttl = (Long) results.get(1);
+        long expireAt = pttl != null && pttl > 0 ? now + pttl : now + TimeUnit.MINUTES.toMillis(LOGIN_USER_TTL);
+        return new Session(BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false), expireAt);
+    }
+
+    /**
+     * @return false表示刷新时发现token已经不在了
+     */
+    private boolean refreshIfNeeded(String key, Session session, long now) {
+        long last = session.lastRefresh.get();
+        if (session.expireAt - now >= TimeUnit.SECONDS.toMillis(refreshThreshold)
+                || now - last < TimeUnit.SECONDS.toMillis(refreshInterval)
+                || !session.lastRefresh.compareAndSet(last, now)) {
+            return true;
+        }
+        Boolean exists = stringRedisTemplate.expire(key, LOGIN_USER_TTL, TimeUnit.MINUTES);
+        if (Boolean.FALSE.equals(exists)) {
+            return false;
+        }
+        session.expireAt = now + TimeUnit.MINUTES.toMillis(LOGIN_USER_TTL);
+        return true;
+    }
+
+    private static class Session {
+        private final UserDTO user;
+        /**
+         * 估计的redis里token的过期时间
+         */
+        private volatile long expireAt;
+        private final AtomicLong lastRefresh = new AtomicLong();
+
+        Session(UserDTO user, long expireAt) {
+            this.user = user;
+            this.expireAt = expireAt;
+        }
+    }
+}
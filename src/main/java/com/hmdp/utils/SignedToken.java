@@ -0,0 +1,264 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 签名token模式的登录态
+ * token = base64url(载荷).base64url(HMAC-SHA256(载荷))，载荷是UserDTO的字段、会话id和过期时间的二进制编码，
+ * 校验只需要本地算一次HMAC，不访问redis
+ * 快过期时换发一个新token（会话id不变），客户端从响应头里拿到后替换掉旧的
+ * 登出的会话id记在redis的吊销列表里，各节点在本地用布隆过滤器过一遍，只有命中布隆过滤器的才去redis确认
+ */
+@Slf4j
+@Component
+public class SignedToken implements MessageListener {
+
+    /**
+     * 换发的新token放在这个响应头里
+     */
+    public static final String RENEW_HEADER = "x-auth-token";
+
+    private static final byte VERSION = 1;
+    private static final String ALGORITHM = "HmacSHA256";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 登录态的存储方式：redis 服务端hash，signed 签名token
+     */
+    @Value("${hmdp.session.mode:redis}")
+    private String mode;
+
+    @Value("${hmdp.session.secret:}")
+    private String secret;
+
+    /**
+     * 剩余有效期低于多少秒时换发新token，和redis模式刷新有效期的阈值是同一个配置
+     */
+    @Value("${hmdp.session.refresh-threshold:1200}")
+    private long renewThreshold;
+
+    private ThreadLocal<Mac> macs;
+
+    private volatile BloomFilter revoked;
+
+    /**
+     * 重新加载吊销列表期间收到的吊销通知，加载完之后补进新的布隆过滤器
+     */
+    private final Set<String> recentlyRevoked = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        if (StrUtil.isBlank(secret)) {
+            throw new IllegalStateException("签名token模式需要配置hmdp.session.secret");
+        }
+        SecretKeySpec key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        // Mac不是线程安全的，每个线程一个
+        macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        revoked = BloomFilter.create(LOGIN_REVOKED_BLOOM_SIZE, CACHE_BLOOM_FPP);
+        listenerContainer.addMessageListener(this, new ChannelTopic(LOGIN_REVOKE_CHANNEL));
+        reloadRevoked();
+    }
+
+    public boolean isEnabled() {
+        return "signed".equals(mode);
+    }
+
+    /**
+     * 登录时签发新token
+     */
+    public String issue(UserDTO user) {
+        return sign(new Claims(user, ThreadLocalRandom.current().nextLong(), expireAt(System.currentTimeMillis())));
+    }
+
+    /**
+     * 校验token
+     * @return 签名不对、已过期或已吊销返回null
+     */
+    public Claims verify(String token) {
+        Claims claims = decode(token);
+        if (claims == null || claims.expireAt <= System.currentTimeMillis()) {
+            return null;
+        }
+        String sessionId = Long.toString(claims.sessionId);
+        if (revoked.mightContain(sessionId)
+                && stringRedisTemplate.opsForZSet().score(LOGIN_REVOKED_KEY, sessionId) != null) {
+            return null;
+        }
+        return claims;
+    }
+
+    /**
+     * 快过期时换发新token
+     * @return 不需要换发时返回null
+     */
+    public String renewIfNeeded(Claims claims) {
+        long now = System.currentTimeMillis();
+        if (claims.expireAt - now >= TimeUnit.SECONDS.toMillis(renewThreshold)) {
+            return null;
+        }
+        return sign(new Claims(claims.user, claims.sessionId, expireAt(now)));
+    }
+
+    /**
+     * 登出，吊销整个会话，换发过的token一起失效
+     * 吊销记录保留到这个会话可能的最晚过期时间
+     */
+    public void revoke(String token) {
+        Claims claims = decode(token);
+        if (claims == null) {
+            return;
+        }
+        String sessionId = Long.toString(claims.sessionId);
+        long keepUntil = expireAt(System.currentTimeMillis());
+        stringRedisTemplate.opsForZSet().add(LOGIN_REVOKED_KEY, sessionId, keepUntil);
+        markRevoked(sessionId);
+        stringRedisTemplate.convertAndSend(LOGIN_REVOKE_CHANNEL, sessionId);
+    }
+
+    /**
+     * 定时重建布隆过滤器，顺便清理过期的吊销记录，布隆过滤器删不掉元素，只能整个重建
+     */
+    @Scheduled(fixedDelayString = "${hmdp.session.revoke-reload:60000}")
+    public void reloadRevoked() {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            recentlyRevoked.clear();
+            stringRedisTemplate.opsForZSet().removeRangeByScore(LOGIN_REVOKED_KEY, Double.NEGATIVE_INFINITY, System.currentTimeMillis());
+            Set<String> ids = stringRedisTemplate.opsForZSet().range(LOGIN_REVOKED_KEY, 0, -1);
+            BloomFilter filter = BloomFilter.create(LOGIN_REVOKED_BLOOM_SIZE, CACHE_BLOOM_FPP);
+            if (ids != null) {
+                ids.forEach(filter::put);
+            }
+            recentlyRevoked.forEach(filter::put);
+            revoked = filter;
+            // 替换前的一瞬间收到的通知只进了旧的过滤器，再补一次
+            recentlyRevoked.forEach(filter::put);
+        } catch (Exception e) {
+            log.warn("加载token吊销列表失败，继续使用旧的", e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        markRevoked(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    private void markRevoked(String sessionId) {
+        recentlyRevoked.add(sessionId);
+        revoked.put(sessionId);
+    }
+
+    private long expireAt(long now) {
+        return now + TimeUnit.MINUTES.toMillis(LOGIN_USER_TTL);
+    }
+
+    private String sign(Claims claims) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeLong(claims.sessionId);
+            out.writeLong(claims.expireAt);
+            out.writeLong(claims.user.getId());
+            out.writeUTF(StrUtil.nullToEmpty(claims.user.getNickName()));
+            out.writeUTF(StrUtil.nullToEmpty(claims.user.getIcon()));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] payload = bytes.toByteArray();
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString(payload) + "." + encoder.encodeToString(macs.get().doFinal(payload));
+    }
+
+    private Claims decode(String token) {
+        int dot = token.indexOf('.');
+        if (dot <= 0) {
+            return null;
+        }
+        try {
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            byte[] payload = decoder.decode(token.substring(0, dot));
+            byte[] signature = decoder.decode(token.substring(dot + 1));
+            // 定长比较，不泄露签名在第几个字节对不上
+            if (!MessageDigest.isEqual(macs.get().doFinal(payload), signature)) {
+                return null;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            if (in.readByte() != VERSION) {
+                return null;
+            }
+            long sessionId = in.readLong();
+            long expireAt = in.readLong();
+            UserDTO user = new UserDTO();
+            user.setId(in.readLong());
+            user.setNickName(StrUtil.emptyToNull(in.readUTF()));
+            user.setIcon(StrUtil.emptyToNull(in.readUTF()));
+            return new Claims(user, sessionId, expireAt);
+        } catch (IllegalArgumentException | IOException e) {
+            return null;
+        }
+    }
+
+    public static class Claims {
+        private final UserDTO user;
+        private final long sessionId;
+        private final long expireAt;
+
+        Claims(UserDTO user, long sessionId, long expireAt) {
+            this.user = user;
+            this.sessionId = sessionId;
+            this.expireAt = expireAt;
+        }
+
+        public UserDTO getUser() {
+            return user;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 分段锁：本地一组ReentrantLock按key的hash取一把，需要跨节点互斥时再加一层RedisLock
+ * 同一个节点上争同一个key的线程先在本地排队，每个节点同一时刻最多一个线程去redis抢锁；
+ * 不同的key大多落在不同的段上，互不影响
+ * 一次锁多个key时，本地段按下标从小到大、redis锁按key的字典序加锁，所有调用方顺序一致，不会互相死锁
+ */
+@Component
+public class StripedLock {
+
+    @Resource
+    private RedisLock redisLock;
+
+    /**
+     * 本地锁的段数，取2的幂
+     */
+    @Value("${hmdp.lock.stripes:256}")
+    private int stripeCount;
+
+    private ReentrantLock[] stripes;
+
+    @PostConstruct
+    public void init() {
+        int size = Integer.highestOneBit(Math.max(stripeCount - 1, 1)) << 1;
+        stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * 加锁，最多等waitTime
+     * @param distributed 是否需要跨节点互斥，false时只加本地锁
+     */
+    public boolean tryLock(String key, long waitTime, TimeUnit unit, boolean distributed) {
+        List<String> keys = new ArrayList<>(1);
+        keys.add(key);
+        return tryLockAll(keys, waitTime, unit, distributed);
+    }
+
+    public void unlock(String key, boolean distributed) {
+        List<String> keys = new ArrayList<>(1);
+        keys.add(key);
+        unlockAll(keys, distributed);
+    }
+
+    /**
+     * 同时锁住多个key，任何一个在waitTime内拿不到就把已经拿到的全部释放，返回false
+     */
+    public boolean tryLockAll(Collection<String> keys, long waitTime, TimeUnit unit, boolean distributed) {
+        long deadline = System.nanoTime() + unit.toNanos(waitTime);
+        List<ReentrantLock> locals = new ArrayList<>();
+        List<String> remotes = new ArrayList<>();
+        try {
+            // 1.本地段按下标顺序加锁
+            for (int index : stripeIndexes(keys)) {
+                ReentrantLock lock = stripes[index];
+                if (!lock.tryLock(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    return false;
+                }
+                locals.add(lock);
+            }
+            // 2.redis锁按key的顺序加锁
+            if (distributed) {
+                for (String key : new TreeSet<>(keys)) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (!redisLock.tryLock(key, Math.max(0, remaining), TimeUnit.MILLISECONDS)) {
+                        return false;
+                    }
+                    remotes.add(key);
+                }
+            }
+            locals.clear();
+            remotes.clear();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            // 没有全部拿到时，已经拿到的倒序释放；全部拿到时两个列表都已清空
+            for (int i = remotes.size() - 1; i >= 0; i--) {
+                redisLock.unlock(remotes.get(i));
+            }
+            for (int i = locals.size() - 1; i >= 0; i--) {
+                locals.get(i).unlock();
+            }
+        }
+    }
+
+    /**
+     * 释放tryLockAll拿到的锁，传入的key要和加锁时一致
+     */
+    public void unlockAll(Collection<String> keys, boolean distributed) {
+        if (distributed) {
+            for (String key : new TreeSet<>(keys).descendingSet()) {
+                redisLock.unlock(key);
+            }
+        }
+        for (int index : stripeIndexes(keys).descendingSet()) {
+            stripes[index].unlock();
+        }
+    }
+
+    /**
+     * 多个key落在同一段时只锁一次
+     */
+    private TreeSet<Integer> stripeIndexes(Collection<String> keys) {
+        TreeSet<Integer> indexes = new TreeSet<>();
+        for (String key : keys) {
+            int h = key.hashCode();
+            indexes.add((h ^ (h >>> 16)) & (stripes.length - 1));
+        }
+        return indexes;
+    }
+}
@@ -0,0 +1,7 @@
+-- 释放：key还是自己持有时才删除
+-- KEYS[1] 租约key
+-- ARGV[1] 持有者标识
+if redis.call('get', KEYS[1]) == ARGV[1] then
+    return redis.call('del', KEYS[1])
+end
+return 0
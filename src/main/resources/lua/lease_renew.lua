@@ -0,0 +1,8 @@
+-- 续约：key还是自己持有时才延长过期时间
+-- KEYS[1] 租约key
+-- ARGV[1] 持有者标识
+-- ARGV[2] 过期时间（秒）
+if redis.call('get', KEYS[1]) == ARGV[1] then
+    return redis.call('expire', KEYS[1], ARGV[2])
+end
+return 0
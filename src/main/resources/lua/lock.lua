@@ -0,0 +1,17 @@
+-- 可重入锁加锁：锁是一个hash，field是持有者标识，value是重入次数
+-- KEYS[1] 锁key
+-- ARGV[1] 租约时长（毫秒）
+-- ARGV[2] 持有者标识
+-- 返回 0加锁成功，否则是锁剩余的毫秒数
+if redis.call('exists', KEYS[1]) == 0 then
+    redis.call('hincrby', KEYS[1], ARGV[2], 1)
+    redis.call('pexpire', KEYS[1], ARGV[1])
+    return 0
+end
+-- 旧版本SETNX留下的字符串锁，当作别人持有
+if redis.call('type', KEYS[1]).ok == 'hash' and redis.call('hexists', KEYS[1], ARGV[2]) == 1 then
+    redis.call('hincrby', KEYS[1], ARGV[2], 1)
+    redis.call('pexpire', KEYS[1], ARGV[1])
+    return 0
+end
+return math.max(redis.call('pttl', KEYS[1]), 1)
@@ -0,0 +1,8 @@
+-- 看门狗续约：还是自己持有时才延长租约
+-- KEYS[1] 锁key
+-- ARGV[1] 持有者标识
+-- ARGV[2] 租约时长（毫秒）
+if redis.call('type', KEYS[1]).ok == 'hash' and redis.call('hexists', KEYS[1], ARGV[1]) == 1 then
+    return redis.call('pexpire', KEYS[1], ARGV[2])
+end
+return 0
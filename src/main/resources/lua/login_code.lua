@@ -0,0 +1,13 @@
+-- 校验并删除验证码，一个验证码只能用一次
+-- KEYS[1] 验证码key login:code:{phone}
+-- ARGV[1] 用户提交的验证码
+-- 返回 0通过 1验证码错误 2验证码不存在或已过期
+local code = redis.call('get', KEYS[1])
+if not code then
+    return 2
+end
+if code ~= ARGV[1] then
+    return 1
+end
+redis.call('del', KEYS[1])
+return 0
@@ -0,0 +1,34 @@
+-- 令牌桶：按上次取令牌到现在的时间补充令牌，够就扣减
+-- KEYS[1] 令牌桶key（hash：tokens剩余令牌数、ts上次补充的毫秒时间戳）
+-- ARGV[1] 每秒补充的令牌数
+-- ARGV[2] 桶容量
+-- ARGV[3] 当前毫秒时间戳
+-- ARGV[4] 本次要取的令牌数
+-- 返回 {1, 0} 放行；{0, 还要等多少毫秒} 拒绝
+local rate = tonumber(ARGV[1])
+local capacity = tonumber(ARGV[2])
+local now = tonumber(ARGV[3])
+local requested = tonumber(ARGV[4])
+
+local bucket = redis.call('hmget', KEYS[1], 'tokens', 'ts')
+local tokens = tonumber(bucket[1])
+local ts = tonumber(bucket[2])
+if tokens == nil or ts == nil then
+    tokens = capacity
+    ts = now
+end
+-- 各节点时钟有偏差，时间倒退时不补也不扣
+tokens = math.min(capacity, tokens + math.max(0, now - ts) * rate / 1000)
+
+local allowed = 0
+local wait = 0
+if tokens >= requested then
+    tokens = tokens - requested
+    allowed = 1
+else
+    wait = math.ceil((requested - tokens) * 1000 / rate)
+end
+redis.call('hmset', KEYS[1], 'tokens', tostring(tokens), 'ts', tostring(math.max(now, ts)))
+-- 桶空到补满所需的时间之后，key和满桶没有区别，直接过期
+redis.call('pexpire', KEYS[1], math.ceil(capacity * 1000 / rate) + 1000)
+return {allowed, wait}
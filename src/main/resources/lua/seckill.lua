@@ -0,0 +1,30 @@
+-- 秒杀资格判断，整个脚本在redis里原子执行
+-- 三个key用同一个hash tag {voucherId}，在集群里落在同一个槽
+-- 订单消息队列是所有券共用的，不和这张券在一个槽，由调用方在脚本成功后发消息
+-- KEYS[1] 库存key seckill:stock:{voucherId}
+-- KEYS[2] 活动时间key seckill:time:{voucherId}，hash里存begin、end的毫秒时间戳
+-- KEYS[3] 已下单用户set seckill:order:{voucherId}
+-- ARGV[1] 用户id
+-- ARGV[2] 当前时间毫秒，由调用方传入
+-- 返回 {结果码, 剩余库存}，结果码 0成功 1库存不足 2重复下单 3未开始 4已结束 5没有预热到redis，剩余库存未知时为-1
+local stock = redis.call('get', KEYS[1])
+local window = redis.call('hmget', KEYS[2], 'begin', 'end')
+if not stock or not window[1] or not window[2] then
+    return {5, -1}
+end
+local now = tonumber(ARGV[2])
+if now < tonumber(window[1]) then
+    return {3, -1}
+end
+if now > tonumber(window[2]) then
+    return {4, -1}
+end
+if tonumber(stock) <= 0 then
+    return {1, 0}
+end
+if redis.call('sismember', KEYS[3], ARGV[1]) == 1 then
+    return {2, -1}
+end
+local remaining = redis.call('incrby', KEYS[1], -1)
+redis.call('sadd', KEYS[3], ARGV[1])
+return {0, remaining}
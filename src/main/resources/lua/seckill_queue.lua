@@ -0,0 +1,35 @@
+-- 秒杀排队：查询排队状态，需要时加入队尾；重复加入不会改变位置
+-- KEYS[1] 排队zset seckill:queue:{voucherId}，分数是入队序号
+-- KEYS[2] 已放行zset seckill:admitted:{voucherId}，分数是放行资格的过期时间
+-- KEYS[3] 排队状态hash seckill:queue:state:{voucherId}（seq入队序号）
+-- KEYS[4] 活动时间key seckill:time:{voucherId}
+-- ARGV[1] 用户id
+-- ARGV[2] 当前时间毫秒
+-- ARGV[3] 1加入队列 0只查询
+-- 返回 {结果码, 排队位置} 结果码：0排队中 1已放行 2不在队列中 4已结束 5没有预热到redis
+local window = redis.call('hmget', KEYS[4], 'begin', 'end')
+if not window[1] or not window[2] then
+    return {5, 0}
+end
+local now = tonumber(ARGV[2])
+local stop = tonumber(window[2])
+if now > stop then
+    return {4, 0}
+end
+local deadline = tonumber(redis.call('zscore', KEYS[2], ARGV[1]))
+if deadline and deadline > now then
+    return {1, 0}
+end
+local rank = redis.call('zrank', KEYS[1], ARGV[1])
+if not rank then
+    if ARGV[3] ~= '1' then
+        return {2, 0}
+    end
+    local seq = redis.call('hincrby', KEYS[3], 'seq', 1)
+    redis.call('zadd', KEYS[1], seq, ARGV[1])
+    -- 活动结束一小时后整个队列自动清理
+    redis.call('pexpireat', KEYS[1], stop + 3600000)
+    redis.call('pexpireat', KEYS[3], stop + 3600000)
+    rank = redis.call('zrank', KEYS[1], ARGV[1])
+end
+return {0, rank + 1}
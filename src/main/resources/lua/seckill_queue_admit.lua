@@ -0,0 +1,48 @@
+-- 按固定速率从队头放行一批用户，先进先出
+-- 所有节点都会定时执行，放行数量按上次放行到现在的时间计算，所以总速率和节点数无关
+-- KEYS[1] 排队zset seckill:queue:{voucherId}
+-- KEYS[2] 已放行zset seckill:admitted:{voucherId}
+-- KEYS[3] 排队状态hash seckill:queue:state:{voucherId}（last上次放行时间，credit没用完的零头）
+-- KEYS[4] 活动时间key seckill:time:{voucherId}
+-- ARGV[1] 当前时间毫秒
+-- ARGV[2] 每秒放行人数
+-- ARGV[3] 一次最多放行人数
+-- ARGV[4] 放行资格的有效期（毫秒）
+-- 返回 剩余排队人数，活动已结束或没有预热时返回-1
+local window = redis.call('hmget', KEYS[4], 'begin', 'end')
+local now = tonumber(ARGV[1])
+if not window[1] or not window[2] or now > tonumber(window[2]) then
+    return -1
+end
+-- 过期没用掉的放行资格清掉
+redis.call('zremrangebyscore', KEYS[2], '-inf', now)
+local waiting = redis.call('zcard', KEYS[1])
+-- 活动还没开始只排队不放行
+if now < tonumber(window[1]) then
+    return waiting
+end
+local state = redis.call('hmget', KEYS[3], 'last', 'credit')
+local last = tonumber(state[1])
+local credit = tonumber(state[2]) or 0
+if not last then
+    redis.call('hset', KEYS[3], 'last', now)
+    return waiting
+end
+local allowance = math.min(tonumber(ARGV[3]), credit + math.max(0, now - last) * tonumber(ARGV[2]) / 1000)
+local n = math.floor(allowance)
+if n > 0 and waiting > 0 then
+    local users = redis.call('zrange', KEYS[1], 0, n - 1)
+    local deadline = now + tonumber(ARGV[4])
+    for _, user in ipairs(users) do
+        redis.call('zadd', KEYS[2], deadline, user)
+    end
+    redis.call('zrem', KEYS[1], unpack(users))
+    redis.call('pexpireat', KEYS[2], tonumber(window[2]) + 3600000)
+    waiting = waiting - #users
+end
+-- 队列空了不攒额度，否则下一波人来时会一下子放进去一大批
+if waiting == 0 then
+    allowance = n
+end
+redis.call('hmset', KEYS[3], 'last', tostring(math.max(now, last)), 'credit', tostring(allowance - n))
+return waiting
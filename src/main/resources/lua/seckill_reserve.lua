@@ -0,0 +1,21 @@
+-- 分段库存模式下的第一步：判断活动时间并占住一人一单的资格
+-- KEYS[1] 活动时间key seckill:time:{voucherId}
+-- KEYS[2] 已下单用户set seckill:order:{voucherId}
+-- ARGV[1] 用户id
+-- ARGV[2] 当前时间毫秒
+-- 返回 0成功 2重复下单 3未开始 4已结束 5没有预热到redis
+local window = redis.call('hmget', KEYS[1], 'begin', 'end')
+if not window[1] or not window[2] then
+    return 5
+end
+local now = tonumber(ARGV[2])
+if now < tonumber(window[1]) then
+    return 3
+end
+if now > tonumber(window[2]) then
+    return 4
+end
+if redis.call('sadd', KEYS[2], ARGV[1]) == 0 then
+    return 2
+end
+return 0
@@ -0,0 +1,18 @@
+-- 分段库存模式下的第二步：从一段库存里扣一个并发出订单消息
+-- 同一段的库存和订单队列用同一个hash tag，在集群里落在同一个槽
+-- KEYS[1] 分段库存 seckill:stock:{seg段号}:voucherId
+-- KEYS[2] 分段订单队列 stream.orders:{seg段号}
+-- ARGV[1] 用户id
+-- ARGV[2] 优惠券id
+-- ARGV[3] 订单id
+-- 返回 {结果码, 这一段的剩余库存}，结果码 0成功 1这一段没有库存 5这一段没有预热
+local stock = redis.call('get', KEYS[1])
+if not stock then
+    return {5, -1}
+end
+if tonumber(stock) <= 0 then
+    return {1, 0}
+end
+local remaining = redis.call('incrby', KEYS[1], -1)
+redis.call('xadd', KEYS[2], '*', 'userId', ARGV[1], 'voucherId', ARGV[2], 'id', ARGV[3])
+return {0, remaining}
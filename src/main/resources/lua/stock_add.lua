@@ -0,0 +1,7 @@
+-- 给一段库存加上ARGV[1]个，库存还没写入时不加，等预热从数据库写入
+-- KEYS[1] 分段库存
+-- 返回加完之后的库存，没写入过返回nil
+if redis.call('exists', KEYS[1]) == 0 then
+    return nil
+end
+return redis.call('incrby', KEYS[1], ARGV[1])
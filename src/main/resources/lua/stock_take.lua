@@ -0,0 +1,10 @@
+-- 从一段库存里最多拿走ARGV[1]个，不会拿成负数
+-- KEYS[1] 分段库存
+-- 返回实际拿走的数量
+local stock = tonumber(redis.call('get', KEYS[1]) or '0')
+local take = math.min(stock, tonumber(ARGV[1]))
+if take <= 0 then
+    return 0
+end
+redis.call('incrby', KEYS[1], -take)
+return take
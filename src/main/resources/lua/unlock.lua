@@ -0,0 +1,17 @@
+-- 可重入锁解锁：只有持有者才能解锁，重入次数减到0时删除并通知等待的节点
+-- KEYS[1] 锁key
+-- ARGV[1] 持有者标识
+-- ARGV[2] 租约时长（毫秒）
+-- ARGV[3] 释放通知的频道
+-- 返回 -1不是持有者（已过期或被别人拿走），0已释放，大于0是剩余的重入次数
+if redis.call('type', KEYS[1]).ok ~= 'hash' or redis.call('hexists', KEYS[1], ARGV[1]) == 0 then
+    return -1
+end
+local count = redis.call('hincrby', KEYS[1], ARGV[1], -1)
+if count > 0 then
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return count
+end
+redis.call('del', KEYS[1])
+redis.call('publish', ARGV[3], KEYS[1])
+return 0
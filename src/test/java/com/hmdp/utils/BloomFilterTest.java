@@ -0,0 +1,31 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BloomFilterTest {
+
+  @Test
+  void testFalsePositiveRateAndSize() {
+    //10万个id、1%误判率：理论上每个元素约9.6位，k=7
+    int n = 100000;
+    BloomFilter filter = BloomFilter.create(n, 0.01);
+    for (long i = 1; i <= n; i++) {
+      filter.put(String.valueOf(i));
+    }
+    for (long i = 1; i <= n; i++) {
+      assertTrue(filter.mightContain(String.valueOf(i)), "放进去的id不能判断为不存在：" + i);
+    }
+    int falsePositive = 0;
+    for (long i = n + 1; i <= 2L * n; i++) {
+      if (filter.mightContain(String.valueOf(i))) {
+        falsePositive++;
+      }
+    }
+    double fpp = falsePositive / (double) n;
+    assertTrue(fpp < 0.011, "误判率超出预期：" + fpp);
+    //理论大小约117KB，按64位取整之后也不应超过125KB
+    assertTrue(filter.sizeInBytes() <= 125000, "占用内存超出预期：" + filter.sizeInBytes());
+  }
+}
@@ -0,0 +1,64 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+
+import java.time.LocalDateTime;
+
+/**
+ * 对比两种缓存格式的大小和编解码耗时，不依赖数据库和spring，直接运行main
+ * 典型店铺数据：json约700字节，binary约500字节，解码快一个数量级以上
+ */
+public class CacheCodecBenchmark {
+
+  private static final int WARM_UP = 200000;
+  private static final int ROUNDS = 1000000;
+
+  public static void main(String[] args) {
+    RedisData redisData = new RedisData();
+    redisData.setData(shop());
+    redisData.setExpireTime(LocalDateTime.now().plusSeconds(30));
+    redisData.setRebuildMillis(35L);
+    for (CacheCodec codec : new CacheCodec[]{new JsonCacheCodec(), new BinaryCacheCodec()}) {
+      byte[] bytes = codec.encode(redisData);
+      //预热，让JIT编译完
+      for (int i = 0; i < WARM_UP; i++) {
+        codec.decode(codec.encode(redisData), Shop.class);
+      }
+      long begin = System.nanoTime();
+      for (int i = 0; i < ROUNDS; i++) {
+        bytes = codec.encode(redisData);
+      }
+      long encode = (System.nanoTime() - begin) / ROUNDS;
+      begin = System.nanoTime();
+      Object sink = null;
+      for (int i = 0; i < ROUNDS; i++) {
+        sink = codec.decode(bytes, Shop.class);
+      }
+      long decode = (System.nanoTime() - begin) / ROUNDS;
+      System.out.println(codec.name() + ": bytes = " + bytes.length + ", encode = " + encode + "ns/op, decode = "
+          + decode + "ns/op");
+      if (sink == null) {
+        throw new IllegalStateException("解码结果为空");
+      }
+    }
+  }
+
+  private static Shop shop() {
+    return new Shop()
+        .setId(1L)
+        .setName("103茶餐厅")
+        .setTypeId(1L)
+        .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg,https://qcloud.dpfile.com/pc/IOf6VX3qaBgFXFVgp75w-KKJmWZjFc8GXDU8g9bQC6YGCpAmG00QbfT4vCCBj7njuzFvxlbkWx5uwqY2qcjixFEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vmIU_8ZGOT1OjpJmLxG6urQ.jpg")
+        .setArea("大关")
+        .setAddress("金华路锦昌文华苑29号")
+        .setX(120.149192)
+        .setY(30.316078)
+        .setAvgPrice(80L)
+        .setSold(4215)
+        .setComments(3035)
+        .setScore(37)
+        .setOpenHours("10:00-22:00")
+        .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+        .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+  }
+}
@@ -0,0 +1,151 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.entity.Voucher;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CacheCodecTest {
+
+  /**
+   * 二进制格式的时间只精确到毫秒
+   */
+  private static final LocalDateTime TIME = LocalDateTime.of(2022, 1, 4, 10, 30, 15, 123000000);
+
+  private final CacheCodec json = new JsonCacheCodec();
+  private final CacheCodec binary = new BinaryCacheCodec();
+
+  /**
+   * 和RedisClient一样，读取时按数据本身挑解码器
+   */
+  private final List<CacheCodec> codecs = Arrays.asList(binary, json);
+
+  @Test
+  void testRoundTrip() {
+    for (CacheCodec codec : codecs) {
+      for (Object value : samples()) {
+        assertTrue(codec.supports(value.getClass()), codec.name() + "不支持" + value.getClass());
+        // 普通缓存
+        RedisData plain = codec.decode(codec.encode(wrap(value, null, null)), value.getClass());
+        assertEquals(value, plain.getData(), codec.name());
+        assertNull(plain.getExpireTime(), codec.name());
+        // 逻辑过期
+        RedisData logical = codec.decode(codec.encode(wrap(value, TIME, 35L)), value.getClass());
+        assertEquals(value, logical.getData(), codec.name());
+        assertEquals(TIME, logical.getExpireTime(), codec.name());
+        assertEquals(35L, logical.getRebuildMillis(), codec.name());
+      }
+    }
+  }
+
+  @Test
+  void testNullFields() {
+    Shop shop = new Shop().setId(2L).setName("只有名字");
+    RedisData redisData = binary.decode(binary.encode(wrap(shop, null, null)), Shop.class);
+    assertEquals(shop, redisData.getData());
+  }
+
+  @Test
+  void testJsonLogicalExpireWithoutData() {
+    //重建时查不到数据留下的空壳，要认出是逻辑过期的外层，不能解成一个字段全空的对象
+    RedisData redisData = json.decode(json.encode(wrap(null, TIME, null)), Shop.class);
+    assertNull(redisData.getData());
+    assertEquals(TIME, redisData.getExpireTime());
+  }
+
+  @Test
+  void testReadExistingJson() {
+    //切换到二进制格式之前写进redis的json值，读取时要能认出来并按json解码
+    for (Object value : samples()) {
+      for (RedisData written : Arrays.asList(wrap(value, null, null), wrap(value, TIME, 35L))) {
+        byte[] bytes = json.encode(written);
+        assertFalse(binary.canDecode(bytes));
+        RedisData redisData = decode(bytes, value.getClass());
+        assertEquals(value, redisData.getData());
+        assertEquals(written.getExpireTime(), redisData.getExpireTime());
+      }
+    }
+  }
+
+  @Test
+  void testPickBinary() {
+    for (Object value : samples()) {
+      byte[] bytes = binary.encode(wrap(value, TIME, null));
+      assertFalse(json.canDecode(bytes));
+      assertEquals(value, decode(bytes, value.getClass()).getData());
+    }
+  }
+
+  private RedisData decode(byte[] bytes, Class<?> type) {
+    for (CacheCodec codec : codecs) {
+      if (codec.canDecode(bytes)) {
+        return codec.decode(bytes, type);
+      }
+    }
+    throw new IllegalStateException("没有能解码的格式");
+  }
+
+  private static RedisData wrap(Object value, LocalDateTime expireTime, Long rebuildMillis) {
+    RedisData redisData = new RedisData();
+    redisData.setData(value);
+    redisData.setExpireTime(expireTime);
+    redisData.setRebuildMillis(rebuildMillis);
+    return redisData;
+  }
+
+  private static List<Object> samples() {
+    Shop shop = new Shop()
+        .setId(1L)
+        .setName("103茶餐厅")
+        .setTypeId(1L)
+        .setImages("https://example.com/a.jpg,https://example.com/b.jpg")
+        .setArea("大关")
+        .setAddress("金华路锦昌文华苑29号")
+        .setX(120.149192)
+        .setY(30.316078)
+        .setAvgPrice(80L)
+        .setSold(4215)
+        .setComments(3035)
+        .setScore(37)
+        .setOpenHours("10:00-22:00")
+        .setCreateTime(TIME)
+        .setUpdateTime(TIME.plusDays(1));
+    ShopType shopType = new ShopType()
+        .setId(1L)
+        .setName("美食")
+        .setIcon("/types/ms.png")
+        .setSort(1)
+        .setCreateTime(TIME)
+        .setUpdateTime(TIME);
+    Voucher voucher = new Voucher()
+        .setId(10L)
+        .setShopId(1L)
+        .setTitle("100元代金券")
+        .setSubTitle("周一至周五均可使用")
+        .setRules("全场通用\\n无需预约")
+        .setPayValue(8000L)
+        .setActualValue(10000L)
+        .setType(1)
+        .setStatus(1)
+        .setStock(100)
+        .setBeginTime(TIME)
+        .setEndTime(TIME.plusHours(2))
+        .setCreateTime(TIME)
+        .setUpdateTime(TIME);
+    UserDTO user = new UserDTO();
+    user.setId(1010L);
+    user.setNickName("user_abc");
+    user.setIcon("");
+    return Arrays.asList(shop, shopType, voucher, user);
+  }
+}